@@ -0,0 +1,76 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import jp.co.worksap.message.parser.AddressParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AddressParser.fixAddress() with the addresses parsed by MimeMessage, as
+ * MessageWrapper.getFrom() and getRecipients() call it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddressParserBenchmark {
+
+	@Param({ "address/address_001.txt", "address/address_002.txt",
+			"address/address_003.txt", "address/address_004.txt",
+			"address/address_005.txt", Corpus.MANY_RECIPIENTS })
+	public String message;
+
+	private Address[] garble;
+
+	private String[] constructable;
+
+	private final AddressParser parser = new AddressParser();
+
+	@Setup
+	public void setUp() throws MessagingException {
+		MimeMessage mimeMessage = new MimeMessage(null,
+				new ByteArrayInputStream(Corpus.load(message)));
+		String name = "From";
+		garble = mimeMessage.getFrom();
+		constructable = mimeMessage.getHeader(name);
+		if (constructable == null || !constructable[0].contains("=?")) {
+			name = "To";
+			garble = mimeMessage.getRecipients(RecipientType.TO);
+			constructable = mimeMessage.getHeader(name);
+		}
+	}
+
+	@Benchmark
+	public InternetAddress[] fixAddress() throws MessagingException {
+		return parser.fixAddress(garble, constructable);
+	}
+}
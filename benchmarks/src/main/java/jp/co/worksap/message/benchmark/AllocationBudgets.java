@@ -0,0 +1,72 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * run parse(), getSubject() and getContent() of MessageWrapperBenchmark with
+ * the GC profiler, and compare the bytes allocated per call with
+ * allocation-budgets.properties.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar jp.co.worksap.message.benchmark.AllocationBudgets
+ * java -cp target/benchmarks.jar jp.co.worksap.message.benchmark.AllocationBudgets \
+ *     --record src/main/resources/allocation-budgets.properties
+ * </pre>
+ * 
+ * the scores of getSubject() and getContent() include parse() of the
+ * message, because MessageWrapper caches the decoded values.
+ */
+public final class AllocationBudgets {
+	static final String RESOURCE_NAME = "allocation-budgets.properties";
+
+	private static final String ALLOCATION_PER_CALL = "gc.alloc.rate.norm";
+
+	private AllocationBudgets() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(MessageWrapperBenchmark.class.getSimpleName()
+						+ "\\.(parse|getSubject|getContent)$")
+				.addProfiler(GCProfiler.class)
+				.warmupIterations(2)
+				.warmupTime(TimeValue.seconds(1))
+				.measurementIterations(3)
+				.measurementTime(TimeValue.seconds(1))
+				.forks(1)
+				.build();
+
+		Map<String, Long> measured = new TreeMap<String, Long>();
+		for (RunResult result : new Runner(options).run()) {
+			String benchmark = result.getParams().getBenchmark();
+			String method = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+			Result<?> allocation = result.getSecondaryResults().get(
+					ALLOCATION_PER_CALL);
+			if (allocation == null) {
+				continue;
+			}
+			measured.put(method + "." + result.getParams().getParam("message"),
+					Math.round(allocation.getScore()));
+		}
+		Budgets.run(args, measured, RESOURCE_NAME,
+				"bytes allocated per call, measured by " + ALLOCATION_PER_CALL);
+	}
+}
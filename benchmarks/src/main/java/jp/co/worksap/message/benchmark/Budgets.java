@@ -0,0 +1,117 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * the recorded budgets of bytes, such as the bytes allocated by a call or the
+ * retained heap of a wrapper. a measured value is over the budget when it
+ * exceeds the recorded one by more than TOLERANCE. the budgets are recorded
+ * by the "--record" option of AllocationBudgets and FootprintBudgets, and
+ * kept in src/main/resources to compare later changes against them.
+ */
+final class Budgets {
+	static final double TOLERANCE = 0.1;
+
+	static final String RECORD_OPTION = "--record";
+
+	private final Properties budgets = new Properties();
+
+	private Budgets() {
+	}
+
+	static Budgets load(String resourceName) throws IOException {
+		Budgets budgets = new Budgets();
+		InputStream is = Budgets.class.getClassLoader().getResourceAsStream(
+				resourceName);
+		if (is != null) {
+			try {
+				budgets.budgets.load(is);
+			} finally {
+				is.close();
+			}
+		}
+		return budgets;
+	}
+
+	/**
+	 * write the budgets sorted by the names and without a timestamp, so that
+	 * the changes of the file are easy to review.
+	 */
+	static void record(Map<String, Long> measured, File file, String comment)
+			throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.ISO_8859_1);
+		try {
+			writer.write("# " + comment + "\n");
+			for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(
+					measured).entrySet()) {
+				writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * print the measured values with their budgets and return false if any
+	 * of them is over the budget. a value which has no budget is only
+	 * printed.
+	 */
+	boolean check(Map<String, Long> measured, PrintStream out) {
+		boolean passed = true;
+		out.printf("%-60s %12s %12s %8s%n", "measurement", "bytes", "budget",
+				"");
+		for (Map.Entry<String, Long> entry : measured.entrySet()) {
+			String budget = budgets.getProperty(entry.getKey());
+			String verdict = "";
+			if (budget != null) {
+				long limit = (long) (Long.parseLong(budget) * (1 + TOLERANCE));
+				if (entry.getValue() > limit) {
+					verdict = "OVER";
+					passed = false;
+				} else {
+					verdict = "ok";
+				}
+			}
+			out.printf("%-60s %12d %12s %8s%n", entry.getKey(),
+					entry.getValue(), (budget == null) ? "-" : budget, verdict);
+		}
+		return passed;
+	}
+
+	/**
+	 * compare or record the measured values as the main() of a budget check.
+	 */
+	static void run(String[] args, Map<String, Long> measured,
+			String resourceName, String comment) throws IOException {
+		if (args.length == 2 && args[0].equals(RECORD_OPTION)) {
+			record(measured, new File(args[1]), comment);
+			System.out.println("Recorded " + measured.size() + " budgets in "
+					+ args[1]);
+			return;
+		}
+		if (!load(resourceName).check(measured, System.out)) {
+			System.out.println("Some measurements are over the budgets.");
+			System.exit(1);
+		}
+	}
+}
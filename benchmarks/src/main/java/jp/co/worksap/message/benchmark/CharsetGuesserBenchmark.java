@@ -0,0 +1,75 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import jp.co.worksap.message.wrapper.CharsetGuesser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CharsetGuesser over the bodies of the content corpus, with the candidates
+ * taken from the headers of the message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CharsetGuesserBenchmark {
+
+	@Param({ "content/content_001.txt", "content/content_005.txt",
+			"content/content_008.txt", "content/content_011.txt",
+			Corpus.LARGE_BODY, Corpus.LARGE_BODY_WITHOUT_CHARSET })
+	public String message;
+
+	/** "whole" or "sampled", the first 4 KB and the last 1 KB */
+	@Param({ "whole", "sampled" })
+	public String sample;
+
+	private Set<String> candidates;
+
+	private byte[] body;
+
+	private CharsetGuesser guesser;
+
+	@Setup
+	public void setUp() throws MessagingException {
+		byte[] source = Corpus.load(message);
+		guesser = sample.equals("sampled") ? new CharsetGuesser(4096, 1024)
+				: new CharsetGuesser();
+		InternetHeaders headers = new InternetHeaders(new ByteArrayInputStream(
+				source));
+		candidates = guesser.findCandidates(headers.getAllHeaders());
+		body = Corpus.body(source);
+	}
+
+	@Benchmark
+	public String guessCharset() {
+		return guesser.guessCharset(candidates, new ByteArrayInputStream(body));
+	}
+}
@@ -0,0 +1,122 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import jp.co.worksap.message.decoder.ContentDecoder;
+
+import org.apache.commons.codec.net.QuotedPrintableCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ContentDecoder over the 1 MB body of Corpus.LARGE_BODY, encoded by each
+ * Content-Transfer-Encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentDecoderBenchmark {
+
+	private static final String CHARSET = "ISO-2022-JP";
+
+	@Param({ "7bit", "base64", "quoted-printable" })
+	public String encoding;
+
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() {
+		byte[] body = Corpus.body(Corpus.load(Corpus.LARGE_BODY));
+		if (encoding.equals("base64")) {
+			encoded = Base64.getMimeEncoder().encode(body);
+		} else if (encoding.equals("quoted-printable")) {
+			encoded = encodeQuotedPrintable(body);
+		} else {
+			encoded = body;
+		}
+	}
+
+	@Benchmark
+	public String decodeContent() throws MessagingException {
+		return new ContentDecoder().decodeContent(new ByteArrayInputStream(
+				encoded), CHARSET, encoding);
+	}
+
+	@Benchmark
+	public void decodeContentToWriter(Blackhole blackhole) throws IOException,
+			MessagingException {
+		new ContentDecoder().decodeContent(
+				new ByteArrayInputStream(encoded), CHARSET, encoding,
+				new BlackholeWriter(blackhole));
+	}
+
+	private static byte[] encodeQuotedPrintable(byte[] body) {
+		// encode line by line to keep the line breaks
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 2);
+		int start = 0;
+		for (int i = 0; i < body.length; i++) {
+			if (body[i] == '\r' && i + 1 < body.length && body[i + 1] == '\n') {
+				byte[] line = new byte[i - start];
+				System.arraycopy(body, start, line, 0, line.length);
+				byte[] encodedLine = QuotedPrintableCodec
+						.encodeQuotedPrintable(null, line);
+				out.write(encodedLine, 0, encodedLine.length);
+				out.write('\r');
+				out.write('\n');
+				start = i + 2;
+				i++;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static final class BlackholeWriter extends Writer {
+		private final Blackhole blackhole;
+
+		BlackholeWriter(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			blackhole.consume(cbuf);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * messages for the benchmarks. the names are the resources of the unit tests
+ * in ../src/test/resources or the synthetic messages below, which are scaled
+ * up to show how the decoding grows with the size.
+ */
+final class Corpus {
+	/** text/plain of 1 MB, ISO-2022-JP declared by the charset parameter */
+	static final String LARGE_BODY = "synthetic/large-body";
+
+	/** text/plain of 1 MB, ISO-2022-JP but no charset parameter */
+	static final String LARGE_BODY_WITHOUT_CHARSET =
+			"synthetic/large-body-without-charset";
+
+	/** 5,000 recipients in the To field with encoded personal names */
+	static final String MANY_RECIPIENTS = "synthetic/many-recipients";
+
+	/** multipart/mixed with 200 attachments with encoded file names */
+	static final String MANY_ATTACHMENTS = "synthetic/many-attachments";
+
+	static final int LARGE_BODY_SIZE = 1024 * 1024;
+
+	static final int RECIPIENTS = 5000;
+
+	static final int ATTACHMENTS = 200;
+
+	private static final Charset ISO2022JP = Charset.forName("ISO-2022-JP");
+
+	private static final String CRLF = "\r\n";
+
+	private static final String BOUNDARY = "----=_Part_0_benchmark";
+
+	private Corpus() {
+	}
+
+	static byte[] load(String name) {
+		if (name.equals(LARGE_BODY)) {
+			return createLargeBody(true);
+		} else if (name.equals(LARGE_BODY_WITHOUT_CHARSET)) {
+			return createLargeBody(false);
+		} else if (name.equals(MANY_RECIPIENTS)) {
+			return createManyRecipients();
+		} else if (name.equals(MANY_ATTACHMENTS)) {
+			return createManyAttachments();
+		}
+		return loadResource(name);
+	}
+
+	/**
+	 * return the body of the message, after the first blank line.
+	 */
+	static byte[] body(byte[] message) {
+		for (int i = 0; i + 1 < message.length; i++) {
+			if (message[i] == '\n' && (message[i + 1] == '\n'
+					|| (message[i + 1] == '\r' && i + 2 < message.length
+							&& message[i + 2] == '\n'))) {
+				int start = i + ((message[i + 1] == '\n') ? 2 : 3);
+				byte[] body = new byte[message.length - start];
+				System.arraycopy(message, start, body, 0, body.length);
+				return body;
+			}
+		}
+		return new byte[0];
+	}
+
+	static String encodeWord(String text) {
+		return "=?ISO-2022-JP?B?"
+				+ Base64.getEncoder().encodeToString(text.getBytes(ISO2022JP))
+				+ "?=";
+	}
+
+	private static byte[] loadResource(String name) {
+		InputStream is = Corpus.class.getClassLoader().getResourceAsStream(
+				name);
+		if (is == null) {
+			throw new IllegalArgumentException("No such message: " + name);
+		}
+		try {
+			try {
+				return ByteStreams.toByteArray(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static byte[] createLargeBody(boolean withCharset) {
+		StringBuilder header = new StringBuilder();
+		header.append("From: ").append(encodeWord("テスト送信者"))
+				.append(" <sender@example.com>").append(CRLF);
+		header.append("To: receiver@example.com").append(CRLF);
+		header.append("Subject: ").append(encodeWord("大きな本文のテスト"))
+				.append(CRLF);
+		header.append("MIME-Version: 1.0").append(CRLF);
+		header.append("Content-Type: text/plain")
+				.append(withCharset ? "; charset=ISO-2022-JP" : "")
+				.append(CRLF);
+		header.append("Content-Transfer-Encoding: 7bit").append(CRLF);
+		header.append(CRLF);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				LARGE_BODY_SIZE + 1024);
+		write(out, header.toString().getBytes(StandardCharsets.US_ASCII));
+		for (int line = 0; out.size() < LARGE_BODY_SIZE; line++) {
+			write(out, ("テスト本文の" + line + "行目です。test line " + line
+					+ CRLF).getBytes(ISO2022JP));
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] createManyRecipients() {
+		StringBuilder message = new StringBuilder();
+		message.append("From: sender@example.com").append(CRLF);
+		message.append("To: ");
+		for (int i = 0; i < RECIPIENTS; i++) {
+			if (i > 0) {
+				message.append(",").append(CRLF).append("\t");
+			}
+			message.append(encodeWord("テスト受信者" + i)).append(" <user")
+					.append(i).append("@example.com>");
+		}
+		message.append(CRLF);
+		message.append("Subject: ").append(encodeWord("宛先が多いテスト"))
+				.append(CRLF);
+		message.append("MIME-Version: 1.0").append(CRLF);
+		message.append("Content-Type: text/plain; charset=ISO-2022-JP")
+				.append(CRLF);
+		message.append(CRLF);
+		message.append("test").append(CRLF);
+		return message.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] createManyAttachments() {
+		byte[] data = new byte[1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		String encodedData = Base64.getMimeEncoder().encodeToString(data);
+
+		StringBuilder message = new StringBuilder();
+		message.append("From: sender@example.com").append(CRLF);
+		message.append("To: receiver@example.com").append(CRLF);
+		message.append("Subject: ").append(encodeWord("添付ファイルが多いテスト"))
+				.append(CRLF);
+		message.append("MIME-Version: 1.0").append(CRLF);
+		message.append("Content-Type: multipart/mixed; boundary=\"")
+				.append(BOUNDARY).append("\"").append(CRLF);
+		message.append(CRLF);
+		message.append("--").append(BOUNDARY).append(CRLF);
+		message.append("Content-Type: text/plain; charset=ISO-2022-JP")
+				.append(CRLF);
+		message.append("Content-Transfer-Encoding: 7bit").append(CRLF);
+		message.append(CRLF);
+		message.append("test").append(CRLF);
+		for (int i = 0; i < ATTACHMENTS; i++) {
+			String fileName = encodeWord("テスト添付" + i + ".bin");
+			message.append("--").append(BOUNDARY).append(CRLF);
+			message.append("Content-Type: application/octet-stream")
+					.append(CRLF);
+			message.append("Content-Transfer-Encoding: base64").append(CRLF);
+			message.append("Content-Disposition: attachment;").append(CRLF);
+			message.append("\tfilename=\"").append(fileName).append("\"")
+					.append(CRLF);
+			message.append(CRLF);
+			message.append(encodedData).append(CRLF);
+		}
+		message.append("--").append(BOUNDARY).append("--").append(CRLF);
+		return message.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		out.write(bytes, 0, bytes.length);
+	}
+}
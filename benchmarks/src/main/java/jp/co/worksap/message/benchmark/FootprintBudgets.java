@@ -0,0 +1,76 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * measure the retained heap of one MessageWrapper by the object graph, and
+ * compare it with footprint-budgets.properties. "parsed" is a wrapper just
+ * after it's created, and "decoded" is the wrapper and its content after the
+ * subject, the addresses and the content are decoded.
+ * 
+ * <pre>
+ * java -Djdk.attach.allowAttachSelf -cp target/benchmarks.jar \
+ *     jp.co.worksap.message.benchmark.FootprintBudgets
+ * java -Djdk.attach.allowAttachSelf -cp target/benchmarks.jar \
+ *     jp.co.worksap.message.benchmark.FootprintBudgets \
+ *     --record src/main/resources/footprint-budgets.properties
+ * </pre>
+ */
+public final class FootprintBudgets {
+	static final String RESOURCE_NAME = "footprint-budgets.properties";
+
+	private static final String[] MESSAGES = { "subject/subject_001.txt",
+			"subject/subject_003.txt", "subject/subject_005.txt",
+			"address/address_001.txt", "address/address_004.txt",
+			"content/content_001.txt", "content/content_004.txt",
+			"content/content_005.txt", "content/content_011.txt",
+			"filename/filename_001.txt", "filename/filename_003.txt",
+			Corpus.LARGE_BODY, Corpus.MANY_RECIPIENTS, Corpus.MANY_ATTACHMENTS };
+
+	private FootprintBudgets() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, Long> measured = new TreeMap<String, Long>();
+		for (String message : MESSAGES) {
+			byte[] source = Corpus.load(message);
+			MessageWrapper wrapper = MessageWrapperBenchmark.parse(source);
+			measured.put("parsed." + message,
+					GraphLayout.parseInstance(wrapper).totalSize());
+
+			Object content = decode(wrapper);
+			measured.put("decoded." + message,
+					GraphLayout.parseInstance(wrapper, content).totalSize());
+		}
+		Budgets.run(args, measured, RESOURCE_NAME,
+				"retained bytes of a MessageWrapper, measured by the object graph");
+	}
+
+	private static Object decode(MessageWrapper wrapper)
+			throws MessagingException, IOException {
+		wrapper.getSubject();
+		wrapper.getFrom();
+		wrapper.getReplyTo();
+		wrapper.getRecipients(RecipientType.TO);
+		wrapper.getRecipients(RecipientType.CC);
+		return wrapper.getContent();
+	}
+}
@@ -0,0 +1,150 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+import jp.co.worksap.message.decoder.HeaderDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * HeaderDecoder over the raw header values of the corpora.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderDecoderBenchmark {
+
+	/** a Subject field of 50 encoded words */
+	static final String LONG_SUBJECT = "synthetic/long-subject";
+
+	private static final int LONG_SUBJECT_WORDS = 50;
+
+	@State(Scope.Benchmark)
+	public static class Subjects {
+		@Param({ "subject/subject_001.txt", "subject/subject_003.txt",
+				"subject/subject_005.txt", "subject/subject_007.txt",
+				"subject/subject_008.txt", LONG_SUBJECT })
+		public String message;
+
+		String subject;
+
+		@Setup
+		public void setUp() throws MessagingException {
+			if (message.equals(LONG_SUBJECT)) {
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < LONG_SUBJECT_WORDS; i++) {
+					builder.append((i == 0) ? "" : "\r\n ").append(
+							Corpus.encodeWord("長い件名のテスト" + i));
+				}
+				subject = builder.toString();
+			} else {
+				subject = getHeader(Corpus.load(message), "Subject");
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Addresses {
+		@Param({ "address/address_001.txt", "address/address_002.txt",
+				"address/address_003.txt", "address/address_004.txt",
+				"address/address_005.txt", Corpus.MANY_RECIPIENTS })
+		public String message;
+
+		String address;
+
+		@Setup
+		public void setUp() throws MessagingException {
+			byte[] source = Corpus.load(message);
+			address = getHeader(source, "From");
+			if (address == null || !address.contains("=?")) {
+				address = getHeader(source, "To");
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FileNames {
+		@Param({ "filename/filename_001.txt", "filename/filename_002.txt",
+				"filename/filename_003.txt", "filename/filename_004.txt",
+				"filename/filename_005.txt", Corpus.MANY_ATTACHMENTS })
+		public String message;
+
+		List<String> dispositions;
+
+		@Setup
+		public void setUp() throws Exception {
+			MimeMessage mimeMessage = new MimeMessage(null,
+					new ByteArrayInputStream(Corpus.load(message)));
+			Multipart multipart = (Multipart) mimeMessage.getContent();
+			List<String> list = new ArrayList<String>();
+			for (int i = 0; i < multipart.getCount(); i++) {
+				// same as MessageWrapper.getFileName()
+				BodyPart part = multipart.getBodyPart(i);
+				String[] disposition = part.getHeader("Content-Disposition");
+				if (disposition != null) {
+					list.add("\r\ncontent-disposition: " + disposition[0]);
+				}
+			}
+			dispositions = Collections.unmodifiableList(list);
+		}
+	}
+
+	private final HeaderDecoder decoder = new HeaderDecoder();
+
+	@Benchmark
+	public String decodeSubject(Subjects subjects) {
+		return decoder.decodeSubject(subjects.subject);
+	}
+
+	@Benchmark
+	public String decodeAddress(Addresses addresses) {
+		return decoder.decodeAddress(addresses.address);
+	}
+
+	@Benchmark
+	public void decodeFileName(FileNames fileNames, Blackhole blackhole) {
+		for (String disposition : fileNames.dispositions) {
+			blackhole.consume(decoder.decodeFileName(disposition));
+		}
+	}
+
+	static String getHeader(byte[] source, String name)
+			throws MessagingException {
+		InternetHeaders headers = new InternetHeaders(new ByteArrayInputStream(
+				source));
+		return headers.getHeader(name, ",");
+	}
+}
@@ -0,0 +1,161 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.BodyPart;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.InternetAddress;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * the getters of MessageWrapper. MessageWrapper caches the decoded values, so
+ * every invocation parses a new wrapper. compare the scores with parse() of
+ * the same message to see the cost of the getter itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageWrapperBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SubjectMessages {
+		@Param({ "subject/subject_001.txt", "subject/subject_002.txt",
+				"subject/subject_003.txt", "subject/subject_004.txt",
+				"subject/subject_005.txt", "subject/subject_006.txt",
+				"subject/subject_007.txt", "subject/subject_008.txt",
+				Corpus.LARGE_BODY })
+		public String message;
+
+		byte[] source;
+
+		@Setup
+		public void setUp() {
+			source = Corpus.load(message);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class AddressMessages {
+		@Param({ "address/address_001.txt", "address/address_002.txt",
+				"address/address_003.txt", "address/address_004.txt",
+				"address/address_005.txt", Corpus.MANY_RECIPIENTS })
+		public String message;
+
+		byte[] source;
+
+		@Setup
+		public void setUp() {
+			source = Corpus.load(message);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ContentMessages {
+		@Param({ "content/content_001.txt", "content/content_002.txt",
+				"content/content_003.txt", "content/content_004.txt",
+				"content/content_005.txt", "content/content_006.txt",
+				"content/content_007.txt", "content/content_008.txt",
+				"content/content_009.txt", "content/content_010.txt",
+				"content/content_011.txt", Corpus.LARGE_BODY,
+				Corpus.LARGE_BODY_WITHOUT_CHARSET })
+		public String message;
+
+		byte[] source;
+
+		@Setup
+		public void setUp() {
+			source = Corpus.load(message);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FileNameMessages {
+		@Param({ "filename/filename_001.txt", "filename/filename_002.txt",
+				"filename/filename_003.txt", "filename/filename_004.txt",
+				"filename/filename_005.txt", Corpus.MANY_ATTACHMENTS })
+		public String message;
+
+		byte[] source;
+
+		@Setup
+		public void setUp() {
+			source = Corpus.load(message);
+		}
+	}
+
+	@Benchmark
+	public MessageWrapper parse(ContentMessages messages) {
+		return parse(messages.source);
+	}
+
+	@Benchmark
+	public String getSubject(SubjectMessages messages)
+			throws MessagingException {
+		return parse(messages.source).getSubject();
+	}
+
+	@Benchmark
+	public InternetAddress[] getFrom(AddressMessages messages)
+			throws MessagingException {
+		return parse(messages.source).getFrom();
+	}
+
+	@Benchmark
+	public InternetAddress[] getRecipients(AddressMessages messages)
+			throws MessagingException {
+		return parse(messages.source).getRecipients(RecipientType.TO);
+	}
+
+	@Benchmark
+	public Object getContent(ContentMessages messages) throws IOException,
+			MessagingException {
+		return parse(messages.source).getContent();
+	}
+
+	@Benchmark
+	public void getFileName(FileNameMessages messages, Blackhole blackhole)
+			throws IOException, MessagingException {
+		Object content = parse(messages.source).getContent();
+		if (!(content instanceof Multipart)) {
+			return;
+		}
+		Multipart multipart = (Multipart) content;
+		for (int i = 0; i < multipart.getCount(); i++) {
+			BodyPart part = multipart.getBodyPart(i);
+			blackhole.consume(part.getFileName());
+		}
+	}
+
+	static MessageWrapper parse(byte[] source) {
+		return new MessageWrapper(null, new ByteArrayInputStream(source));
+	}
+}
@@ -0,0 +1,26 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * "charset" of the event is the winner of the guess.
+ */
+@Name("jp.co.worksap.message.CharsetGuess")
+@Label("Charset Guess")
+@Description("The charset of a content or a header without charset was guessed")
+public final class CharsetGuessEvent extends DecodeEvent {
+	@Label("Candidates")
+	@Description("The charsets found in the headers, separated by commas")
+	String candidates;
+}
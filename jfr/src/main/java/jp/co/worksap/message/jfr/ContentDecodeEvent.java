@@ -0,0 +1,20 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("jp.co.worksap.message.ContentDecode")
+@Label("Content Decode")
+@Description("MessageWrapper.getContent() decoded the content")
+public final class ContentDecodeEvent extends DecodeEvent {
+}
@@ -0,0 +1,23 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("jp.co.worksap.message.ContentRepair")
+@Label("Content Repair")
+@Description("A broken content was repaired")
+public final class ContentRepairEvent extends DecodeEvent {
+	@Label("Repair")
+	@Description("The DecodeStage of the repair")
+	String repair;
+}
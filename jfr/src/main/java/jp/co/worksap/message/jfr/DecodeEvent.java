@@ -0,0 +1,60 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * the fields shared by the events of the decoding stages. an event begins
+ * when its stage starts and is committed when the stage is completed, so the
+ * duration of an event is the stage. "elapsed" is the time which
+ * MessageWrapper measured for the stage.
+ */
+@Category("Message Wrapper")
+@StackTrace(false)
+abstract class DecodeEvent extends Event {
+	@Label("UID")
+	@Description("The UID set by MessageWrapper.setUID()")
+	String uid;
+
+	@Label("Message Size")
+	@Description("The size of the content of the message, or -1 if it's unknown")
+	@DataAmount
+	int messageSize;
+
+	@Label("Elapsed")
+	@Timespan
+	long elapsed;
+
+	@Label("Bytes")
+	@Description("The bytes processed by the stage, or -1 if it's unknown")
+	@DataAmount
+	long bytes;
+
+	@Label("Charset")
+	@Description("The charset chosen by the stage")
+	String charset;
+
+	final void commit(String uid, int messageSize, long elapsedNanos,
+			long bytes, String charset) {
+		this.uid = uid;
+		this.messageSize = messageSize;
+		this.elapsed = elapsedNanos;
+		this.bytes = bytes;
+		this.charset = charset;
+		commit();
+	}
+}
@@ -0,0 +1,64 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jp.co.worksap.message.metrics.DecodeMetrics;
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+
+/**
+ * registers JfrDecodeMetricsListener as the global listener of DecodeMetrics
+ * only while a recording is running. otherwise the global listener is the one
+ * which was registered before install(), so the wrappers don't even measure
+ * the stages when nothing records them and that listener is NOOP.
+ * 
+ * the wrappers which have their own listener are not affected. don't change
+ * the global listener after install(), because it's replaced when a recording
+ * starts or stops.
+ */
+public final class JfrDecodeMetrics {
+	private static boolean installed = false;
+
+	private JfrDecodeMetrics() {
+	}
+
+	public static synchronized void install() {
+		if (installed) {
+			return;
+		}
+		installed = true;
+
+		final DecodeMetricsListener previous = DecodeMetrics.getListener();
+		final DecodeMetricsListener jfr = new JfrDecodeMetricsListener(
+				previous);
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recordingStateChanged(Recording recording) {
+				DecodeMetrics.setListener(isRecording() ? jfr : previous);
+			}
+		});
+		if (FlightRecorder.isInitialized() && isRecording()) {
+			DecodeMetrics.setListener(jfr);
+		}
+	}
+
+	private static boolean isRecording() {
+		for (Recording recording : FlightRecorder.getFlightRecorder()
+				.getRecordings()) {
+			if (recording.getState() == RecordingState.RUNNING) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,184 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+import jp.co.worksap.message.metrics.DecodeStage;
+import jp.co.worksap.message.metrics.DecodeStageListener;
+
+import com.google.common.base.Joiner;
+
+/**
+ * emits a JFR event for each decoding stage, and passes the metrics to the
+ * delegate too. an event is built only when it's enabled in a running
+ * recording.
+ * 
+ * an event begins when its stage starts and ends when the stage is completed,
+ * so the duration threshold of the recording applies to the stage. a stage
+ * which started before the listener was set is not emitted.
+ */
+public class JfrDecodeMetricsListener implements DecodeStageListener {
+	private static final Joiner CANDIDATES = Joiner.on(',');
+
+	/**
+	 * the stages are not so deep. the stages which threw are never completed,
+	 * so the oldest ones are dropped beyond this.
+	 */
+	private static final int MAX_DEPTH = 16;
+
+	@Nonnull
+	private final DecodeMetricsListener delegate;
+
+	/**
+	 * the begun events of the stages running on each thread, the innermost
+	 * last.
+	 */
+	private final ThreadLocal<Deque<Span>> running =
+			new ThreadLocal<Deque<Span>>() {
+				@Override
+				protected Deque<Span> initialValue() {
+					return new ArrayDeque<Span>();
+				}
+			};
+
+	public JfrDecodeMetricsListener() {
+		this(DecodeMetricsListener.NOOP);
+	}
+
+	public JfrDecodeMetricsListener(@Nonnull DecodeMetricsListener delegate) {
+		this.delegate = checkNotNull(delegate);
+	}
+
+	@Nonnull
+	public DecodeMetricsListener getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public void stageStarted(DecodeStage stage) {
+		if (delegate instanceof DecodeStageListener) {
+			((DecodeStageListener) delegate).stageStarted(stage);
+		}
+
+		DecodeEvent event = newEvent(stage);
+		if (!event.isEnabled()) {
+			return;
+		}
+		Deque<Span> spans = running.get();
+		if (spans.size() == MAX_DEPTH) {
+			spans.removeFirst();
+		}
+		spans.addLast(new Span(stage, event));
+		event.begin();
+	}
+
+	@Override
+	public void stageCompleted(DecodeStage stage, String uid,
+			int messageSize, long elapsedNanos, long bytes, String charset) {
+		delegate.stageCompleted(stage, uid, messageSize, elapsedNanos, bytes,
+				charset);
+
+		if (stage == DecodeStage.CHARSET_GUESS) {
+			// emitted by charsetGuessed() with the candidates
+			return;
+		}
+		DecodeEvent event = endEvent(stage);
+		if (event != null) {
+			event.commit(uid, messageSize, elapsedNanos, bytes, charset);
+		}
+	}
+
+	@Override
+	public void charsetGuessed(String uid, int messageSize,
+			long elapsedNanos, long bytes, Set<String> candidates,
+			String charset) {
+		delegate.charsetGuessed(uid, messageSize, elapsedNanos, bytes,
+				candidates, charset);
+
+		CharsetGuessEvent event = (CharsetGuessEvent) endEvent(
+				DecodeStage.CHARSET_GUESS);
+		if (event != null) {
+			event.candidates = CANDIDATES.join(candidates);
+			event.commit(uid, messageSize, elapsedNanos, bytes, charset);
+		}
+	}
+
+	@Nonnull
+	private static DecodeEvent newEvent(DecodeStage stage) {
+		switch (stage) {
+		case SUBJECT_DECODE:
+			return new HeaderDecodeEvent();
+		case ADDRESS_DECODE:
+			return new AddressFixEvent();
+		case CONTENT_DECODE:
+			return new ContentDecodeEvent();
+		case FILE_NAME_FIX:
+			return new FileNameFixEvent();
+		case CHARSET_GUESS:
+			return new CharsetGuessEvent();
+		default:
+			ContentRepairEvent repair = new ContentRepairEvent();
+			repair.repair = stage.name();
+			return repair;
+		}
+	}
+
+	/**
+	 * end the event of the completed stage, and return it if it should be
+	 * committed. the events above it belong to the stages which threw, so
+	 * they are dropped.
+	 */
+	@Nullable
+	private DecodeEvent endEvent(DecodeStage stage) {
+		Deque<Span> spans = running.get();
+		if (!isRunning(spans, stage)) {
+			return null;
+		}
+		Span span;
+		do {
+			span = spans.removeLast();
+		} while (span.stage != stage);
+
+		span.event.end();
+		return span.event.shouldCommit() ? span.event : null;
+	}
+
+	private static boolean isRunning(Deque<Span> spans, DecodeStage stage) {
+		Iterator<Span> it = spans.descendingIterator();
+		while (it.hasNext()) {
+			if (it.next().stage == stage) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final class Span {
+		@Nonnull
+		final DecodeStage stage;
+
+		@Nonnull
+		final DecodeEvent event;
+
+		Span(DecodeStage stage, DecodeEvent event) {
+			this.stage = stage;
+			this.event = event;
+		}
+	}
+}
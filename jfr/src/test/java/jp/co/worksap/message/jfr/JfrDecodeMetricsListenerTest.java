@@ -0,0 +1,110 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.jfr;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jp.co.worksap.message.metrics.DecodeMetrics;
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.Test;
+
+public class JfrDecodeMetricsListenerTest {
+
+	@Test
+	public void testEvents() throws MessagingException, IOException {
+		List<RecordedEvent> events;
+		try (Recording recording = new Recording()) {
+			recording.enable(HeaderDecodeEvent.class);
+			recording.enable(ContentDecodeEvent.class);
+			recording.enable(CharsetGuessEvent.class);
+			recording.start();
+
+			MessageWrapper subject = createMessage("subject/subject_001.txt");
+			subject.setMetricsListener(new JfrDecodeMetricsListener());
+			subject.setUID("subject");
+			subject.getSubject();
+
+			// charset is not specified (actually ISO-2022-JP)
+			MessageWrapper content = createMessage("content/content_001.txt");
+			content.setMetricsListener(new JfrDecodeMetricsListener());
+			content.getContent();
+
+			recording.stop();
+			events = readEvents(recording);
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (RecordedEvent event : events) {
+			names.add(event.getEventType().getName());
+			if (event.getEventType().getName()
+					.equals("jp.co.worksap.message.HeaderDecode")) {
+				assertThat(event.getString("uid"), is("subject"));
+			}
+			if (event.getEventType().getName()
+					.equals("jp.co.worksap.message.CharsetGuess")) {
+				assertThat(event.getString("candidates").isEmpty(), is(false));
+			}
+			// the events span the stages
+			assertThat(event.getDuration().isZero(), is(false));
+		}
+		assertThat(names, hasItem("jp.co.worksap.message.HeaderDecode"));
+		assertThat(names, hasItem("jp.co.worksap.message.ContentDecode"));
+		assertThat(names, hasItem("jp.co.worksap.message.CharsetGuess"));
+	}
+
+	@Test
+	public void testInstall() {
+		JfrDecodeMetrics.install();
+		assertThat(DecodeMetrics.getListener(),
+				is(not(instanceOf(JfrDecodeMetricsListener.class))));
+		try (Recording recording = new Recording()) {
+			recording.start();
+			assertThat(DecodeMetrics.getListener(),
+					is(instanceOf(JfrDecodeMetricsListener.class)));
+			recording.stop();
+		}
+		assertThat(DecodeMetrics.getListener(), is(DecodeMetricsListener.NOOP));
+	}
+
+	private static List<RecordedEvent> readEvents(Recording recording)
+			throws IOException {
+		Path file = Files.createTempFile("message-wrapper", ".jfr");
+		try {
+			recording.dump(file);
+			return RecordingFile.readAllEvents(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static MessageWrapper createMessage(String resourceName) {
+		InputStream is = JfrDecodeMetricsListenerTest.class.getClassLoader()
+				.getResourceAsStream(resourceName);
+		return new MessageWrapper(null, is);
+	}
+}
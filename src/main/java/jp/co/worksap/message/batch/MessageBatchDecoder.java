@@ -0,0 +1,298 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.batch;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.InputSupplier;
+
+/**
+ * decodes many messages in parallel on an executor, such as the .eml files of
+ * a directory. at most "maxInFlight" messages are held at once, and a message
+ * which fails is reported to the listener without stopping the others.
+ * 
+ * the files are decoded from the largest one. a few huge messages start
+ * first and run beside the small ones, instead of being left to the end of
+ * the batch where they keep a worker busy alone. the files larger than
+ * "mappingThreshold" are memory-mapped instead of read into the heap.
+ */
+public final class MessageBatchDecoder {
+
+	/**
+	 * the default size of the files which are memory-mapped.
+	 */
+	public static final long DEFAULT_MAPPING_THRESHOLD = 1024 * 1024;
+
+	private static final Comparator<SizedFile> LARGEST_FIRST = new Comparator<SizedFile>() {
+		public int compare(SizedFile o1, SizedFile o2) {
+			return (o1.length < o2.length) ? 1
+					: ((o1.length == o2.length) ? 0 : -1);
+		}
+	};
+
+	private static final FileFilter FILES = new FileFilter() {
+		public boolean accept(File file) {
+			return file.isFile();
+		}
+	};
+
+	@Nonnull
+	private final ExecutorService executor;
+
+	private final int maxInFlight;
+
+	@Nullable
+	private volatile Session session;
+
+	private volatile long mappingThreshold = DEFAULT_MAPPING_THRESHOLD;
+
+	/**
+	 * @param executor
+	 *            runs the decoding. it is not shut down by this decoder.
+	 * @param maxInFlight
+	 *            is the number of the messages which are submitted to
+	 *            "executor" and not finished yet. the caller waits while it's
+	 *            reached.
+	 */
+	public MessageBatchDecoder(@Nonnull ExecutorService executor,
+			int maxInFlight) {
+		checkArgument(maxInFlight > 0, "maxInFlight: %s", maxInFlight);
+		this.executor = checkNotNull(executor);
+		this.maxInFlight = maxInFlight;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	@Nullable
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * set the session of the created messages.
+	 */
+	public void setSession(@Nullable Session session) {
+		this.session = session;
+	}
+
+	public long getMappingThreshold() {
+		return mappingThreshold;
+	}
+
+	/**
+	 * the files larger than "threshold" bytes are memory-mapped.
+	 * Long.MAX_VALUE means no file is mapped.
+	 */
+	public void setMappingThreshold(long threshold) {
+		checkArgument(threshold >= 0, "threshold: %s", threshold);
+		this.mappingThreshold = threshold;
+	}
+
+	/**
+	 * decode the files in "directory", not including the sub directories.
+	 * it returns when all of them are passed to "listener".
+	 */
+	public void decodeDirectory(@Nonnull File directory,
+			@Nonnull MessageBatchListener<? super File> listener)
+			throws IOException, InterruptedException {
+		File[] files = directory.listFiles(FILES);
+		if (files == null) {
+			throw new IOException("Failed to list the files in " + directory);
+		}
+		decodeFiles(Arrays.asList(files), listener);
+	}
+
+	/**
+	 * decode "files" from the largest one. it returns when all of them are
+	 * passed to "listener".
+	 */
+	public void decodeFiles(@Nonnull Iterable<File> files,
+			@Nonnull MessageBatchListener<? super File> listener)
+			throws InterruptedException {
+		checkNotNull(listener);
+		// File.length() is called once for each file
+		List<SizedFile> sorted = new ArrayList<SizedFile>();
+		for (File file : files) {
+			sorted.add(new SizedFile(checkNotNull(file)));
+		}
+		Collections.sort(sorted, LARGEST_FIRST);
+
+		Semaphore window = new Semaphore(maxInFlight);
+		try {
+			for (SizedFile file : sorted) {
+				submit(new FileTask(file, listener, window), window);
+			}
+		} finally {
+			awaitAll(window);
+		}
+	}
+
+	/**
+	 * decode the messages of "suppliers" in the order of them. the sizes are
+	 * unknown, so they are not sorted. "suppliers" is read lazily, so it can
+	 * be longer than the memory allows. it returns when all of them are
+	 * passed to "listener".
+	 */
+	public <S extends InputSupplier<? extends InputStream>> void decode(
+			@Nonnull Iterable<S> suppliers,
+			@Nonnull MessageBatchListener<? super S> listener)
+			throws InterruptedException {
+		checkNotNull(listener);
+		Semaphore window = new Semaphore(maxInFlight);
+		try {
+			for (S supplier : suppliers) {
+				submit(new SupplierTask<S>(checkNotNull(supplier), listener,
+						window), window);
+			}
+		} finally {
+			awaitAll(window);
+		}
+	}
+
+	private void submit(Runnable task, Semaphore window)
+			throws InterruptedException {
+		window.acquire();
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			window.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * wait until the submitted tasks finish.
+	 */
+	private void awaitAll(Semaphore window) throws InterruptedException {
+		window.acquire(maxInFlight);
+		window.release(maxInFlight);
+	}
+
+	private MessageWrapper read(SizedFile file) throws IOException {
+		Session current = session;
+		if (file.length > mappingThreshold) {
+			return new MessageWrapper(current, file.file);
+		}
+		InputStream in = new FileInputStream(file.file);
+		try {
+			// the message shares the bytes instead of copying the content
+			return new MessageWrapper(current, new SharedByteArrayInputStream(
+					ByteStreams.toByteArray(in)));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	private abstract static class Task<S> implements Runnable {
+		private final S source;
+		private final MessageBatchListener<? super S> listener;
+		private final Semaphore window;
+
+		Task(S source, MessageBatchListener<? super S> listener,
+				Semaphore window) {
+			this.source = source;
+			this.listener = listener;
+			this.window = window;
+		}
+
+		public final void run() {
+			try {
+				MessageWrapper message;
+				try {
+					message = read();
+				} catch (Exception e) {
+					listener.failed(source, e);
+					return;
+				}
+				try {
+					listener.decoded(source, message);
+				} catch (Exception e) {
+					listener.failed(source, e);
+				}
+			} finally {
+				window.release();
+			}
+		}
+
+		abstract MessageWrapper read() throws Exception;
+	}
+
+	private static final class SizedFile {
+		private final File file;
+		private final long length;
+
+		SizedFile(File file) {
+			this.file = file;
+			this.length = file.length();
+		}
+	}
+
+	private final class FileTask extends Task<File> {
+		private final SizedFile file;
+
+		FileTask(SizedFile file, MessageBatchListener<? super File> listener,
+				Semaphore window) {
+			super(file.file, listener, window);
+			this.file = file;
+		}
+
+		@Override
+		MessageWrapper read() throws IOException {
+			return MessageBatchDecoder.this.read(file);
+		}
+	}
+
+	private final class SupplierTask<S extends InputSupplier<? extends InputStream>>
+			extends Task<S> {
+		private final S supplier;
+
+		SupplierTask(S supplier, MessageBatchListener<? super S> listener,
+				Semaphore window) {
+			super(supplier, listener, window);
+			this.supplier = supplier;
+		}
+
+		@Override
+		MessageWrapper read() throws IOException {
+			InputStream in = supplier.getInput();
+			try {
+				return new MessageWrapper(session, in);
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.batch;
+
+import javax.annotation.Nonnull;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+/**
+ * receives the messages decoded by MessageBatchDecoder. it is called on the
+ * threads of the executor, so it must be thread-safe.
+ * 
+ * @param <S>
+ *            is the type of the sources, such as File.
+ */
+public interface MessageBatchListener<S> {
+
+	/**
+	 * called with the message created from "source". the getters of
+	 * "message" can be called here, so the decoding runs on the executor too.
+	 * an exception thrown here is passed to failed().
+	 */
+	void decoded(@Nonnull S source, @Nonnull MessageWrapper message)
+			throws Exception;
+
+	/**
+	 * called when "source" could not be read or decoded. the other messages
+	 * of the batch are decoded anyway.
+	 */
+	void failed(@Nonnull S source, @Nonnull Exception cause);
+}
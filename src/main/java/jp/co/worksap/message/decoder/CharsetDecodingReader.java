@@ -0,0 +1,133 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.decoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+import jp.co.worksap.message.util.DecoderPool;
+
+/**
+ * Reader which decodes the bytes like InputStreamReader, with a decoder and
+ * a buffer borrowed from DecoderPool. they are released at the end of the
+ * input or when it is closed.
+ */
+final class CharsetDecodingReader extends Reader {
+	private static final int SIZE = 8192;
+
+	private final InputStream in;
+	private CharsetDecoder decoder;
+	private byte[] buffer;
+	private ByteBuffer bytes;
+	// the wrapper of the last "cbuf" given to read()
+	private CharBuffer chars = null;
+	private boolean endOfInput = false;
+	// all the input is decoded and the decoder is being flushed
+	private boolean flushing = false;
+	private boolean closed = false;
+
+	CharsetDecodingReader(InputStream in, Charset charset) {
+		this.in = in;
+		DecoderPool pool = DecoderPool.get();
+		decoder = pool.borrowDecoder(charset, true);
+		buffer = pool.borrowBytes(SIZE);
+		bytes = ByteBuffer.wrap(buffer);
+		bytes.limit(0);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (decoder == null) {
+			// released at the end of the input
+			return -1;
+		}
+
+		if ((chars == null) || (chars.array() != cbuf)) {
+			chars = CharBuffer.wrap(cbuf);
+		}
+		chars.limit(off + len).position(off);
+		while (true) {
+			if (!flushing) {
+				CoderResult result = decoder.decode(bytes, chars, endOfInput);
+				if (result.isOverflow()) {
+					break;
+				}
+				if (result.isError()) {
+					// not reached with the replacing decoder
+					result.throwException();
+				}
+				if (!endOfInput) {
+					if (chars.position() > off && in.available() <= 0) {
+						// don't block while we have something to return
+						break;
+					}
+					fill();
+					continue;
+				}
+				flushing = true;
+			}
+			if (decoder.flush(chars).isUnderflow()) {
+				release();
+			}
+			break;
+		}
+
+		int n = chars.position() - off;
+		return (n == 0) ? -1 : n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		release();
+		in.close();
+	}
+
+	private void fill() throws IOException {
+		bytes.compact();
+		int read;
+		do {
+			read = in.read(buffer, bytes.position(), bytes.remaining());
+		} while (read == 0);
+		if (read < 0) {
+			endOfInput = true;
+		} else {
+			bytes.position(bytes.position() + read);
+		}
+		bytes.flip();
+	}
+
+	private void release() {
+		if (decoder == null) {
+			return;
+		}
+		DecoderPool pool = DecoderPool.get();
+		pool.releaseDecoder(decoder);
+		pool.releaseBytes(buffer);
+		decoder = null;
+		buffer = null;
+		bytes = null;
+	}
+}
@@ -9,21 +9,28 @@
 
 package jp.co.worksap.message.decoder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 import javax.mail.MessagingException;
 
+import jp.co.worksap.message.util.CharsetRegistry;
+import jp.co.worksap.message.util.DecoderPool;
+
 import com.sun.mail.util.BASE64DecoderStream;
 import com.sun.mail.util.QPDecoderStream;
 
+/**
+ * decoder of the text contents. it has no state, so an instance can be shared
+ * by threads.
+ */
 public class ContentDecoder {
 	
-	private Reader reader = null;
+	private static final int SIZE = 8192;
 	
 	public String decodeContent(InputStream in, String charset, String encoding) throws MessagingException {
 		if (in == null) {
@@ -47,12 +54,7 @@ public class ContentDecoder {
 		if (in == null) {
 			return null;
 		}
-		try {
-			reader = new InputStreamReader(new BASE64DecoderStream(in), charset);
-		} catch (UnsupportedEncodingException e) {
-			throw new MessagingException(
-					"Failed to decode because of an unsupported encoding", e);
-		}
+		Reader reader = new CharsetDecodingReader(new BASE64DecoderStream(in), toCharset(charset));
 		return readContent(reader);
 	}
 	
@@ -61,12 +63,7 @@ public class ContentDecoder {
 		if (in == null) {
 			return null;
 		}
-		try {
-			reader = new InputStreamReader(new QPDecoderStream(in), charset);
-		} catch (UnsupportedEncodingException e) {
-			throw new MessagingException(
-					"Failed to decode because of an unsupported encoding", e);
-		}
+		Reader reader = new CharsetDecodingReader(new QPDecoderStream(in), toCharset(charset));
 		return readContent(reader);
 	}
 	
@@ -75,46 +72,89 @@ public class ContentDecoder {
 		if (in == null) {
 			return null;
 		}
+		Reader reader = new CharsetDecodingReader(in, toCharset(charset));
+		return readContent(reader);
+	}
+
+	/**
+	 * return a Reader of the decoded content. it decodes the content while
+	 * the Reader is read, and the line breaks are same as decodeContent().
+	 */
+	public Reader openContent(InputStream in, String charset, String encoding)
+			throws MessagingException {
+		if (in == null) {
+			return null;
+		}
+		return new LineBreakNormalizingReader(new CharsetDecodingReader(
+				decodeTransferEncoding(in, encoding), toCharset(charset)));
+	}
+
+	/**
+	 * write the decoded content into "out" instead of returning it as a
+	 * String.
+	 */
+	public void decodeContent(InputStream in, String charset,
+			String encoding, Appendable out) throws MessagingException {
+		Reader decoded = openContent(in, charset, encoding);
+		if (decoded == null) {
+			return;
+		}
+		readContent(decoded, out);
+	}
+
+	private static Charset toCharset(String charset)
+			throws MessagingException {
 		try {
-			reader = new InputStreamReader(in, charset);
-		} catch (UnsupportedEncodingException e) {
+			return CharsetRegistry.getDefault().forName(charset);
+		} catch (IllegalArgumentException e) {
 			throw new MessagingException(
 					"Failed to decode because of an unsupported encoding", e);
 		}
-		return readContent(reader);
 	}
 
-	private String readContent(Reader reader)
+	private InputStream decodeTransferEncoding(InputStream in, String encoding) {
+		if (encoding == null) {
+			return new QPDecoderStream(in);
+		}
+		String lowerCaseEncoding = encoding.toLowerCase();
+		if (lowerCaseEncoding.equals("base64")) {
+			return new BASE64DecoderStream(in);
+		} else if (lowerCaseEncoding.equals("quoted-printable")) {
+			return new QPDecoderStream(in);
+		} else {
+			return in;
+		}
+	}
+
+	private String readContent(Reader reader) throws MessagingException {
+		StringBuilder sb = new StringBuilder();
+		readContent(new LineBreakNormalizingReader(reader), sb);
+		return sb.toString();
+	}
+
+	private void readContent(Reader reader, Appendable out)
 			throws MessagingException {
-		BufferedReader br = null;
-		StringBuilder sb = null;
+		char[] buffer = DecoderPool.get().borrowChars(SIZE);
 		try {
-			String line;
-			br =  new BufferedReader(reader);
-			sb = new StringBuilder();
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-				sb.append("\r\n");
+			int n;
+			while ((n = reader.read(buffer)) >= 0) {
+				if (out instanceof StringBuilder) {
+					((StringBuilder) out).append(buffer, 0, n);
+				} else if (out instanceof Writer) {
+					((Writer) out).write(buffer, 0, n);
+				} else {
+					out.append(CharBuffer.wrap(buffer, 0, n));
+				}
 			}
-			// delete the last "\r\n"
-			sb.delete(sb.length() - 2, sb.length());
-			return sb.toString();
 		} catch (IOException e) {
 			throw new MessagingException("Failed to read data from the source",
 					e);
 		} finally {
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-				}
-			}
-			if (sb != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-				}
+			try {
+				reader.close();
+			} catch (IOException e) {
 			}
+			DecoderPool.get().releaseChars(buffer);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -9,29 +9,32 @@
 
 package jp.co.worksap.message.decoder;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Pattern;
 
-import jp.co.worksap.message.util.Encoding;
-import jp.co.worksap.message.util.CharsetUtility;
+import jp.co.worksap.message.util.CharsetRegistry;
+import jp.co.worksap.message.util.DecoderPool;
 
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.net.QuotedPrintableCodec;
+import org.apache.commons.codec.binary.StringUtils;
 import org.apache.commons.codec.net.URLCodec;
 
+/**
+ * decoder of the header values. it has no state, so an instance can be
+ * shared by threads.
+ */
 public final class HeaderDecoder {
-	private static final String SOFT_BREAK = "\\r\\n\\s*";
-	private static final String STR_WITH_SPACE = "\\?=\\s=\\?";
-	private static final String STR_WITHOUT_SPACE = "\\?==\\?";
+	private static final String ENCODED_WORD_PREFIX = "=?";
+	private static final String ENCODED_WORD_SUFFIX = "?=";
+	private static final Pattern LINE_BREAK = Pattern.compile("\r\n");
 
 	public String decodeAddress(String encodedAddress) {
-		String parsedAddress = parse(encodedAddress);
-		return decode(parsedAddress);
+		return decodeEncodedWords(encodedAddress.trim());
 	}
 
 	public String decodeSubject(String edcodedSubject) {
-		String parsedSubject = parse(edcodedSubject);
-		return decode(parsedSubject);
+		return decodeEncodedWords(edcodedSubject.trim());
 	}
 
 	public String decodeFileName(String mimeHeader) {
@@ -44,53 +47,93 @@ public final class HeaderDecoder {
 		return "";
 	}
 
-	private String parse(String text) {
-		// get the transfer-encoding.
-		String transferEncoding = getTransferEncoding(text);
-		// trim the text and remove the soft break.
-		String textWithoutSoftBreak = replace(text.trim(), SOFT_BREAK, "");
-
-		// remove spaces within the text.
-		String textWithoutSpace = replace(textWithoutSoftBreak, STR_WITH_SPACE,
-				STR_WITHOUT_SPACE);
-		
-		// decode the text which has Base64(b) encoding.
-		if (transferEncoding == "b") {
-			return textWithoutSpace;
+	/**
+	 * decode the encoded words of RFC2047 in the text by one scan. the text
+	 * before, between and after the encoded words is kept as it is, but the
+	 * white spaces between two encoded words are removed. the bytes of
+	 * adjacent words of the same charset are joined before they are converted
+	 * to chars, because mailers often split a multi-byte character into two
+	 * words. a word which can't be decoded is kept as it is and the scan goes
+	 * on.
+	 */
+	private String decodeEncodedWords(String text) {
+		String unfolded = unfold(text);
+		int start = unfolded.indexOf(ENCODED_WORD_PREFIX);
+		if (start < 0) {
+			return unfolded;
 		}
 
-		// decode the text which has QuotedPrintable(q) encoding.
-		String regex = createEncodingRegex();
-		return replace(textWithoutSpace, regex, "");
+		StringBuilder builder = new StringBuilder(unfolded.length());
+		EncodedWord pending = null;
+		int position = 0;
+		while (start >= 0) {
+			EncodedWord word = EncodedWord.scan(unfolded, start);
+			if (word == null) {
+				// "=?" is a part of the text
+				start = unfolded.indexOf(ENCODED_WORD_PREFIX, start + 2);
+				continue;
+			}
+
+			boolean adjacent = (pending != null)
+					&& isWhiteSpace(unfolded, position, start);
+			if (adjacent && pending.canJoin(word) && pending.join(word)) {
+				// the bytes are added to the pending word
+			} else {
+				if (pending != null) {
+					pending.decodeTo(builder);
+				}
+				if (!adjacent) {
+					builder.append(unfolded, position, start);
+				}
+				pending = word;
+				pending.decodeText();
+			}
+			position = word.end;
+			start = unfolded.indexOf(ENCODED_WORD_PREFIX, position);
+		}
+		if (pending != null) {
+			pending.decodeTo(builder);
+		}
+		builder.append(unfolded, position, unfolded.length());
+		return builder.toString();
 	}
 
-	private String decode(String text) {
-		if (!text.contains("=?")) {
+	/**
+	 * remove the soft breaks, "\r\n" and the following white spaces.
+	 */
+	private static String unfold(String text) {
+		int index = text.indexOf("\r\n");
+		if (index < 0) {
 			return text;
 		}
-			
-		String before = getBeforeFirstEncodedPart(text);
-		String encoded = getFirstEncodedPart(text);
-		String after = getAfterFirstEncodedPart(text);
-		String decoded = "";
-		try {
-			decoded = decodeHeader(getEncodedText(encoded),
-					CharsetUtility.getMappingCharSet(encoded
-							.toLowerCase()), getTransferEncoding(encoded));
-		} catch (UnsupportedEncodingException e) {
-			// can not be decoded, return it.
-			return text;
-		} catch (DecoderException e) {
-			// can not be decoded, return it.
-			return text;
+
+		StringBuilder builder = new StringBuilder(text.length());
+		int position = 0;
+		while (index >= 0) {
+			builder.append(text, position, index);
+			position = index + 2;
+			while (position < text.length()
+					&& isWhiteSpace(text.charAt(position))) {
+				position++;
+			}
+			index = text.indexOf("\r\n", position);
 		}
+		builder.append(text, position, text.length());
+		return builder.toString();
+	}
 
-		if (!CharsetUtility.getValidCharset(after.toLowerCase())
-				.isEmpty()) {
-			after = decode(after);
+	private static boolean isWhiteSpace(String text, int begin, int end) {
+		for (int i = begin; i < end; i++) {
+			if (!isWhiteSpace(text.charAt(i))) {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		return before + decoded + after;
+	private static boolean isWhiteSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f'
+				|| c == '\u000b';
 	}
 
 	private String getFileNameFromFileNameParameter(String mimeHeader) {
@@ -117,7 +160,7 @@ public final class HeaderDecoder {
 	 */
 	private String getFileNameFromNameParameter(String mimeHeader) {
 		if (mimeHeader.toLowerCase().contains("name")) {
-			String[] splitted = mimeHeader.split("\\r\\n");
+			String[] splitted = LINE_BREAK.split(mimeHeader);
 			for (String s : splitted) {
 				if (s.contains("name=")) {
 					int begin = s.indexOf("name=");
@@ -166,9 +209,7 @@ public final class HeaderDecoder {
 		}
 
 		String noQuotation = trimDoubleQuotations(substring);
-		String noSoftBreak = replace(noQuotation, SOFT_BREAK, "");
-
-		return decode(noSoftBreak);
+		return decodeEncodedWords(noQuotation);
 	}
 
 	private String getFileNameByRfc2231(String contentDisposition) {
@@ -234,8 +275,10 @@ public final class HeaderDecoder {
 
 	private String decodeUrlEncodedFileName(String encodedFileName) {
 		String trimmed = encodedFileName.trim();
-		String encoding = CharsetUtility.getValidCharset(trimmed
-				.toLowerCase());
+		Charset charset = CharsetRegistry.getDefault().resolve(trimmed);
+		if (charset == null) {
+			return "";
+		}
 
 		int indexOfFirstQuotation = trimmed.indexOf("'");
 		if (indexOfFirstQuotation < 0) {
@@ -251,11 +294,7 @@ public final class HeaderDecoder {
 		String encoded = trimmed.substring(indexOfSecondQuotation + 1);
 
 		try {
-			return decodeTextByUrl(encoded,
-					CharsetUtility.getMappingCharSet(encoding
-							.toLowerCase()));
-		} catch (UnsupportedEncodingException e) {
-			return "";
+			return decodeTextByUrl(encoded, charset);
 		} catch (DecoderException e) {
 			return "";
 		}
@@ -273,161 +312,212 @@ public final class HeaderDecoder {
 		return text;
 	}
 
-	private String replace(String text, String regex, String replacement) {
-		return text.replaceAll(regex, replacement);
+	private String decodeTextByUrl(String encodedText, Charset charset)
+			throws DecoderException {
+		byte[] bytes = URLCodec.decodeUrl(StringUtils
+				.getBytesUsAscii(encodedText));
+		return new String(bytes, charset);
 	}
 
-	private String createEncodingRegex() {
-		StringBuilder builder = new StringBuilder();
-		String[] charSets = Encoding.VALID_CHARSETS;
-		builder.append("\\?==\\?(");
-		for (int i = 0; i < charSets.length; i++) {
-			builder.append("(").append(charSets[i]).append(")");
-			builder.append("|");
-		}
-		// delete the last "|"
-		builder.deleteCharAt(builder.lastIndexOf("|"));
-		builder.append(")\\?.?\\?");
-		// finally, this regex may look like
-		// "\\?==\\?((utf-8)|(iso-2022-jp)|(shift_jis))\\?.?\\?"
-		return builder.toString();
-	}
-
-	private String getTransferEncoding(String text) {
-		String lowerCaseText = text.toLowerCase();
-		if (lowerCaseText.contains("?b?")) {
-			return "b";
-		} else if (lowerCaseText.contains("?q?")) {
-			return "q";
+	/**
+	 * an encoded word "=?charset?encoding?encoded-text?=", or adjacent words
+	 * of the same charset joined into one. the encoded text is decoded to the
+	 * bytes of the charset, and they are converted to chars at once.
+	 */
+	private static final class EncodedWord {
+		// most words fit in it, so the pooled buffer is reused for them
+		private static final int MIN_BUFFER_SIZE = 256;
+
+		private static final byte[] BASE64_VALUES = new byte[128];
+		static {
+			Arrays.fill(BASE64_VALUES, (byte) -1);
+			String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+					+ "abcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int i = 0; i < alphabet.length(); i++) {
+				BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+			}
 		}
-		return "";
-	}
 
-	private String getEncodedText(String text) {
-		// "text" must have ?B? or ?Q?
-		String lowerCaseText = text.toLowerCase();
-		int begin = lowerCaseText.indexOf("?b?");
-		if (begin < 0) {
-			begin = lowerCaseText.indexOf("?q?");
+		private final String source;
+		private final int start;
+		private int end;
+		// the mapped charset, or null if it's not supported
+		private final Charset charset;
+		private final boolean base64;
+		private final int textStart;
+		private final int textEnd;
+
+		// the decoded bytes of this word and the joined words, borrowed from
+		// DecoderPool. null if this word can't be decoded or is decoded.
+		private byte[] bytes = null;
+		private int length = 0;
+
+		private EncodedWord(String source, int start, int end, Charset charset,
+				boolean base64, int textStart, int textEnd) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			this.charset = charset;
+			this.base64 = base64;
+			this.textStart = textStart;
+			this.textEnd = textEnd;
 		}
-		// "text" must be incorrect
-		if (begin < 0) {
-			return "";
-		}
-		begin += 3; // after ?B? or ?Q?
 
-		// "text" must be incorrect
-		int end = text.lastIndexOf("?=");
-		if ((begin > end) || end > text.length()) {
-			return "";
-		}
+		/**
+		 * return the encoded word which starts with "=?" at the start, or null
+		 * if it is not an encoded word.
+		 */
+		static EncodedWord scan(String source, int start) {
+			int charsetStart = start + ENCODED_WORD_PREFIX.length();
+			int charsetEnd = source.indexOf('?', charsetStart);
+			if (charsetEnd <= charsetStart
+					|| charsetEnd + 2 >= source.length()
+					|| source.charAt(charsetEnd + 2) != '?') {
+				return null;
+			}
 
-		return text.substring(begin, end);
-	}
+			char encoding = source.charAt(charsetEnd + 1);
+			boolean base64 = (encoding == 'B' || encoding == 'b');
+			if (!base64 && encoding != 'Q' && encoding != 'q') {
+				return null;
+			}
 
-	private String getAfterFirstEncodedPart(String text) {
-		int begin = text.indexOf("?=");
-		if (begin < 0) {
-			return "";
-		}
-		begin += 2; // after "?="
+			// search after "?Q?", then "?Q?=" which Quoted-printable often gets
+			// is not mistaken for the end.
+			int textStart = charsetEnd + 3;
+			int textEnd = source.indexOf(ENCODED_WORD_SUFFIX, textStart);
+			if (textEnd < 0) {
+				return null;
+			}
 
-		// Quoted-printable often get ?Q?=
-		String lowerCaseText = text.toLowerCase();
-		int wrong = lowerCaseText.indexOf("?q?=") + 4; // after "?Q?="
-		if (begin == wrong) {
-			begin = lowerCaseText.indexOf("?=", wrong) + 2; // after "?="
+			Charset charset = CharsetRegistry.getDefault().resolve(source,
+					charsetStart, charsetEnd);
+			return new EncodedWord(source, start, textEnd
+					+ ENCODED_WORD_SUFFIX.length(), charset, base64, textStart,
+					textEnd);
 		}
 
-		// "text" must be wrong
-		if (begin > text.length()) {
-			return "";
+		/**
+		 * decode the encoded text of this word to bytes.
+		 */
+		void decodeText() {
+			if (charset == null) {
+				// can not be decoded, keep it.
+				return;
+			}
+			// the decoded bytes are never longer than the encoded text
+			bytes = DecoderPool.get().borrowBytes(
+					Math.max(MIN_BUFFER_SIZE, textEnd - textStart));
+			if (!decodeText(this)) {
+				releaseBytes();
+			}
 		}
 
-		return text.substring(begin);
-	}
-
-	private String getFirstEncodedPart(String text) {
-		int begin = text.indexOf("=?");
-		int end = text.indexOf("?=") + 2; // after "?="
-
-		// Quoted-printable often get ?Q?=
-		int wrong = text.toLowerCase().indexOf("?q?=") + 4; // after "?Q?="
-		if (end == wrong) {
-			end = text.indexOf("?=", wrong) + 2; // after "?="
+		boolean canJoin(EncodedWord next) {
+			return (bytes != null) && charset.equals(next.charset);
 		}
 
-		// they can't be found in "text" or "text" must be wrong
-		if ((begin < 0) || end > text.length() || begin > end) {
-			return "";
+		/**
+		 * add the decoded bytes of the next word to this word. return false if
+		 * the next word can't be decoded.
+		 */
+		boolean join(EncodedWord next) {
+			int required = length + (next.textEnd - next.textStart);
+			if (required > bytes.length) {
+				DecoderPool pool = DecoderPool.get();
+				byte[] grown = pool.borrowBytes(Math.max(required,
+						bytes.length * 2));
+				System.arraycopy(bytes, 0, grown, 0, length);
+				pool.releaseBytes(bytes);
+				bytes = grown;
+			}
+			if (!decodeText(next)) {
+				return false;
+			}
+			end = next.end;
+			return true;
 		}
 
-		return text.substring(begin, end);
-	}
-
-	private String getBeforeFirstEncodedPart(String text) {
-		int end = text.indexOf("=?");
-
-		// "text" must be wrong
-		if (end > text.length()) {
-			return "";
+		void decodeTo(StringBuilder builder) {
+			if (bytes == null) {
+				// can not be decoded, keep it.
+				builder.append(source, start, end);
+				return;
+			}
+			builder.append(new String(bytes, 0, length, charset));
+			releaseBytes();
 		}
 
-		return text.substring(0, end);
-	}
-
-	private String decodeTextByBase64(String encodedText, String charset)
-			throws UnsupportedEncodingException {
-		byte[] byteArray = encodedText.getBytes(charset);
-		byte[] unbase64 = Base64.decodeBase64(byteArray);
-		return new String(unbase64, charset);
-	}
-
-	private String decodeTextByQuotedPrintable(String encodedText,
-			String charset) throws UnsupportedEncodingException,
-			DecoderException {
-		// QuotedPrintableCodec version 1.3 don't implement to replace "_" to
-		// " ". the rule is in header.
-		String grepped = encodedText.replaceAll("_", " ");
-		QuotedPrintableCodec codec = new QuotedPrintableCodec();
+		private void releaseBytes() {
+			DecoderPool.get().releaseBytes(bytes);
+			bytes = null;
+		}
 
-		return codec.decode(grepped, charset);
-	}
+		private boolean decodeText(EncodedWord word) {
+			int mark = length;
+			boolean decoded = word.base64 ? decodeBase64(word.textStart,
+					word.textEnd) : decodeQuotedPrintable(word.textStart,
+					word.textEnd);
+			if (!decoded) {
+				length = mark;
+			}
+			return decoded;
+		}
 
-	private String decodeTextByUrl(String encodedText, String charset)
-			throws UnsupportedEncodingException, DecoderException {
-		URLCodec codec = new URLCodec();
-		return codec.decode(encodedText, charset);
-	}
+		/**
+		 * decode like Base64.decodeBase64() of commons-codec. chars out of the
+		 * alphabet are ignored and the first "=" ends the text.
+		 */
+		private boolean decodeBase64(int begin, int end) {
+			int buffer = 0;
+			int bits = 0;
+			for (int i = begin; i < end; i++) {
+				char c = source.charAt(i);
+				if (c == '=') {
+					break;
+				}
+				int value = (c < BASE64_VALUES.length) ? BASE64_VALUES[c] : -1;
+				if (value < 0) {
+					continue;
+				}
+				buffer = (buffer << 6) | value;
+				bits += 6;
+				if (bits >= 8) {
+					bits -= 8;
+					bytes[length++] = (byte) (buffer >> bits);
+				}
+			}
+			return true;
+		}
 
-	/**
-	 * decode text encoded by transfer-encoding and charset. "transfer-encoding"
-	 * will have "B" or "Q". these are Base64 and Quoted-Printable. "charset"
-	 * will have
-	 * 
-	 * @param encodedText
-	 * @param charset
-	 *            is "B" or "Q". these means Base64 and Quoted-Printable.
-	 * @param encoding
-	 *            is "iso-2022-jp", "shift_jis", "iso-8859-1".
-	 * @return
-	 * @throws UnsupportedEncodingException
-	 * @throws DecoderException
-	 */
-	private String decodeHeader(String encodedText, String charset,
-			String encoding) throws UnsupportedEncodingException,
-			DecoderException {
-		String lowerCaseEncoding = encoding.toLowerCase();
-		if (lowerCaseEncoding.equals("b")) {
-			return decodeTextByBase64(encodedText, charset);
-		} else if (lowerCaseEncoding.equals("q")) {
-			return decodeTextByQuotedPrintable(encodedText, charset);
-		} else if (lowerCaseEncoding.equals("url")) {
-			return decodeTextByUrl(encodedText, charset);
-		} else if (lowerCaseEncoding.equals("none")) {
-			return new String(encodedText.getBytes(), charset);
-		} else {
-			return "";
+		/**
+		 * decode the "Q" encoding, Quoted-printable which uses "_" for the
+		 * space.
+		 */
+		private boolean decodeQuotedPrintable(int begin, int end) {
+			for (int i = begin; i < end; i++) {
+				char c = source.charAt(i);
+				if (c == '_') {
+					bytes[length++] = ' ';
+				} else if (c == '=') {
+					if (i + 2 >= end) {
+						return false;
+					}
+					int high = Character.digit(source.charAt(i + 1), 16);
+					int low = Character.digit(source.charAt(i + 2), 16);
+					if (high < 0 || low < 0) {
+						return false;
+					}
+					bytes[length++] = (byte) ((high << 4) | low);
+					i += 2;
+				} else if (c <= 0xff) {
+					// header is read as ISO-8859-1, a char is a raw byte
+					bytes[length++] = (byte) c;
+				} else {
+					return false;
+				}
+			}
+			return true;
 		}
 	}
-}
\ No newline at end of file
+}
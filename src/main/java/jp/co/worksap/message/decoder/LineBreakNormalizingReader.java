@@ -0,0 +1,116 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.decoder;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import jp.co.worksap.message.util.DecoderPool;
+
+/**
+ * Reader which converts "\r", "\n" and "\r\n" to "\r\n" and drops the last
+ * line break. the result is same as joining the lines of
+ * BufferedReader.readLine() with "\r\n", but it does not hold the whole text.
+ */
+final class LineBreakNormalizingReader extends Reader {
+	private static final int SIZE = 8192;
+
+	private final Reader in;
+	// borrowed from DecoderPool, and released when it's closed
+	private char[] buffer = DecoderPool.get().borrowChars(SIZE);
+	private int position = 0;
+	private int limit = 0;
+
+	// a line break which has been read but not written yet.
+	private boolean pendingBreak = false;
+	// "\r" of "\r\n" has been written.
+	private boolean pendingLf = false;
+	// the previous char was "\r", so the next "\n" belongs to it.
+	private boolean skipLf = false;
+
+	LineBreakNormalizingReader(Reader in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (buffer == null) {
+			throw new IOException("Stream closed");
+		}
+		int n = 0;
+		while (n < len) {
+			if (pendingLf) {
+				cbuf[off + n++] = '\n';
+				pendingLf = false;
+				continue;
+			}
+			if (position == limit) {
+				if (n > 0) {
+					// don't block while we have something to return
+					break;
+				}
+				if (!fill()) {
+					break;
+				}
+			}
+
+			char c = buffer[position++];
+			if (skipLf) {
+				skipLf = false;
+				if (c == '\n') {
+					continue;
+				}
+			}
+			if (pendingBreak) {
+				// the line break is not the last one
+				cbuf[off + n++] = '\r';
+				pendingBreak = false;
+				pendingLf = true;
+				position--;
+				continue;
+			}
+			if (c == '\r' || c == '\n') {
+				pendingBreak = true;
+				skipLf = (c == '\r');
+				continue;
+			}
+			cbuf[off + n++] = c;
+		}
+
+		if (n == 0 && len > 0) {
+			return -1;
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (buffer != null) {
+			DecoderPool.get().releaseChars(buffer);
+			buffer = null;
+			position = limit = 0;
+		}
+		in.close();
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = in.read(buffer, 0, buffer.length);
+		} while (read == 0);
+		if (read < 0) {
+			position = limit = 0;
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+}
@@ -0,0 +1,356 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import jp.co.worksap.message.lmtp.LmtpInput.LineTooLongException;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import com.google.common.base.Charsets;
+
+/**
+ * serves the commands of a connection to LmtpServer in the current thread.
+ */
+final class LmtpConnection implements Runnable {
+
+	// longer than 512 of RFC 5321 for the parameters
+	private static final int MAX_COMMAND_LENGTH = 2048;
+
+	private static final int MAX_RECIPIENTS = 1000;
+
+	private final LmtpServer server;
+
+	private final Socket socket;
+
+	private OutputStream out;
+
+	// the state of the transaction
+	private String clientName = null;
+	private String sender = null;
+	private final List<String> recipients = new ArrayList<String>();
+
+	LmtpConnection(LmtpServer server, Socket socket) {
+		this.server = server;
+		this.socket = socket;
+	}
+
+	public void run() {
+		try {
+			socket.setSoTimeout(server.getIdleTimeout());
+			out = new BufferedOutputStream(socket.getOutputStream());
+			reply("220 " + server.getHostName() + " LMTP ready");
+			serve(new LmtpInput(socket.getInputStream()));
+		} catch (SocketTimeoutException e) {
+			replyQuietly("421 4.4.2 " + server.getHostName()
+					+ " Idle timeout");
+		} catch (LineTooLongException e) {
+			replyQuietly("500 5.5.2 Line too long");
+		} catch (IOException e) {
+			// closed by the client or the server
+		} finally {
+			server.closed(socket);
+		}
+	}
+
+	private void serve(LmtpInput input) throws IOException {
+		String line;
+		while ((line = input.readLine(MAX_COMMAND_LENGTH)) != null) {
+			int space = line.indexOf(' ');
+			String verb = ((space < 0) ? line : line.substring(0, space))
+					.toUpperCase(Locale.ENGLISH);
+			String argument = (space < 0) ? "" : line.substring(space + 1)
+					.trim();
+
+			if (verb.equals("LHLO")) {
+				lhlo(argument);
+			} else if (verb.equals("MAIL")) {
+				mail(argument);
+			} else if (verb.equals("RCPT")) {
+				rcpt(argument);
+			} else if (verb.equals("DATA")) {
+				data(input);
+			} else if (verb.equals("RSET")) {
+				reset();
+				reply("250 2.0.0 OK");
+			} else if (verb.equals("NOOP")) {
+				reply("250 2.0.0 OK");
+			} else if (verb.equals("VRFY")) {
+				reply("252 2.5.0 Cannot VRFY user");
+			} else if (verb.equals("QUIT")) {
+				reply("221 2.0.0 " + server.getHostName() + " closing");
+				return;
+			} else {
+				reply("500 5.5.1 Unknown command");
+			}
+		}
+	}
+
+	private void lhlo(String argument) throws IOException {
+		if (argument.isEmpty()) {
+			reply("501 5.5.4 Syntax: LHLO hostname");
+			return;
+		}
+		reset();
+		clientName = argument;
+		reply("250-" + server.getHostName(), "250-PIPELINING",
+				"250-ENHANCEDSTATUSCODES", "250-8BITMIME", "250 SIZE "
+						+ server.getMaxMessageSize());
+	}
+
+	private void mail(String argument) throws IOException {
+		if (clientName == null) {
+			reply("503 5.5.1 Send LHLO first");
+			return;
+		}
+		if (sender != null) {
+			reply("503 5.5.1 Nested MAIL command");
+			return;
+		}
+		String[] path = parsePath(argument, "FROM:");
+		if (path == null) {
+			reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+			return;
+		}
+		long size = parseSize(path[1]);
+		if (size > server.getMaxMessageSize()) {
+			reply("552 5.3.4 Message too big");
+			return;
+		}
+		sender = path[0];
+		reply("250 2.1.0 OK");
+	}
+
+	private void rcpt(String argument) throws IOException {
+		if (sender == null) {
+			reply("503 5.5.1 Send MAIL first");
+			return;
+		}
+		String[] path = parsePath(argument, "TO:");
+		if (path == null || path[0].isEmpty()) {
+			reply("501 5.5.4 Syntax: RCPT TO:<address>");
+			return;
+		}
+		if (recipients.size() >= MAX_RECIPIENTS) {
+			reply("452 4.5.3 Too many recipients");
+			return;
+		}
+		recipients.add(path[0]);
+		reply("250 2.1.5 OK");
+	}
+
+	private void data(LmtpInput input) throws IOException {
+		if (recipients.isEmpty()) {
+			reply("503 5.5.1 No valid recipients");
+			return;
+		}
+		reply("354 Start mail input; end with <CRLF>.<CRLF>");
+
+		InputStream data = input.newDataStream();
+		BudgetedInputStream budgeted = new BudgetedInputStream(data);
+		String result;
+		try {
+			MessageWrapper message = null;
+			try {
+				message = new MessageWrapper(server.getSession(), budgeted);
+			} catch (RuntimeException e) {
+				// answered after the rest of the message is read
+			}
+			data.close();
+
+			if (budgeted.failure != null) {
+				result = budgeted.failure;
+			} else if (message == null) {
+				result = "554 5.6.0 Malformed message";
+			} else {
+				result = deliver(message);
+			}
+		} finally {
+			budgeted.release();
+		}
+
+		// LMTP answers for each recipient
+		String[] replies = new String[recipients.size()];
+		for (int i = 0; i < replies.length; i++) {
+			replies[i] = result + " <" + recipients.get(i) + ">";
+		}
+		reset();
+		reply(replies);
+	}
+
+	private String deliver(MessageWrapper message) {
+		LmtpTransaction transaction = new LmtpTransaction(
+				(InetSocketAddress) socket.getRemoteSocketAddress(),
+				clientName, sender, recipients);
+		try {
+			server.getHandler().deliver(transaction, message);
+			return "250 2.0.0 Delivered";
+		} catch (Exception e) {
+			return "451 4.3.0 Failed to process the message";
+		}
+	}
+
+	private void reset() {
+		sender = null;
+		recipients.clear();
+	}
+
+	private void reply(String... lines) throws IOException {
+		for (String line : lines) {
+			out.write(line.getBytes(Charsets.US_ASCII));
+			out.write('\r');
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	private void replyQuietly(String line) {
+		if (out == null) {
+			return;
+		}
+		try {
+			reply(line);
+		} catch (IOException e) {
+			// the connection is closed anyway
+		}
+	}
+
+	/**
+	 * return the path without "&lt;" and "&gt;" and the parameters after it,
+	 * or null if "argument" doesn't start with "prefix" and a path.
+	 */
+	@Nullable
+	static String[] parsePath(String argument, String prefix) {
+		if (!argument.regionMatches(true, 0, prefix, 0, prefix.length())) {
+			return null;
+		}
+		String rest = argument.substring(prefix.length()).trim();
+		if (!rest.startsWith("<")) {
+			return null;
+		}
+		int end = rest.indexOf('>');
+		if (end < 0) {
+			return null;
+		}
+		String path = rest.substring(1, end);
+		if (path.startsWith("@")) {
+			// the source route is ignored
+			path = path.substring(path.indexOf(':') + 1);
+		}
+		return new String[] { path, rest.substring(end + 1).trim() };
+	}
+
+	/**
+	 * return the value of SIZE in the parameters of MAIL, or -1.
+	 */
+	static long parseSize(String parameters) {
+		for (String parameter : parameters.split(" +")) {
+			if (parameter.regionMatches(true, 0, "SIZE=", 0, 5)) {
+				try {
+					return Long.parseLong(parameter.substring(5));
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * counts the bytes of a message in the in-flight bytes of the server
+	 * while they are read. it fails with a reply when the message is too
+	 * large or the bytes are not available.
+	 */
+	private final class BudgetedInputStream extends FilterInputStream {
+		private final Semaphore bytes = server.getBytes();
+		private final int maxMessageSize = server.getMaxMessageSize();
+		private final long timeout = server.getBytesTimeout();
+
+		private int acquired = 0;
+
+		@Nullable
+		private String failure = null;
+
+		BudgetedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c >= 0) {
+				acquire(1);
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				acquire(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] skipped = new byte[(int) Math.min(n, 8192)];
+			int read = read(skipped, 0, skipped.length);
+			return Math.max(read, 0);
+		}
+
+		@Override
+		public void close() {
+			// the rest is skipped by LmtpConnection
+		}
+
+		void release() {
+			bytes.release(acquired);
+			acquired = 0;
+		}
+
+		private void acquire(int n) throws IOException {
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+			if (n > maxMessageSize - acquired) {
+				failure = "552 5.3.4 Message too big";
+				throw new IOException(failure);
+			}
+			try {
+				if (!bytes.tryAcquire(n, timeout, TimeUnit.MILLISECONDS)) {
+					failure = "452 4.3.1 Insufficient system resources";
+					throw new IOException(failure);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = "451 4.3.0 Interrupted";
+				throw new InterruptedIOException(failure);
+			}
+			acquired += n;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import javax.annotation.Nonnull;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+/**
+ * receives the messages delivered to LmtpServer. it is called on the thread
+ * of the connection, so it must be thread-safe.
+ */
+public interface LmtpHandler {
+
+	/**
+	 * called with a message received by DATA. the client is answered after
+	 * this method returns, so the message is accepted for all recipients if
+	 * it returns normally. if it throws an exception, the client is told to
+	 * retry later.
+	 * 
+	 * the bytes of "message" are counted as in flight until it returns.
+	 */
+	void deliver(@Nonnull LmtpTransaction transaction,
+			@Nonnull MessageWrapper message) throws Exception;
+}
@@ -0,0 +1,175 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+
+/**
+ * buffered input of an LMTP connection. the commands are read as lines, and
+ * the message of DATA is read by a stream which removes the dot-stuffing and
+ * ends at the line of ".", so the message is parsed as it arrives.
+ */
+final class LmtpInput {
+	private static final int SIZE = 8192;
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	LmtpInput(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * return a line without the line break, or null if the connection is
+	 * closed.
+	 * 
+	 * @throws LineTooLongException
+	 *             if the line is longer than "maxLength".
+	 */
+	@Nullable
+	String readLine(int maxLength) throws IOException {
+		int scanned = 0;
+		while (true) {
+			for (int i = position + scanned; i < limit; i++) {
+				if (buffer[i] == '\n') {
+					int end = (i > position && buffer[i - 1] == '\r') ? i - 1
+							: i;
+					String line = new String(buffer, position, end - position,
+							Charsets.US_ASCII);
+					position = i + 1;
+					return line;
+				}
+			}
+			scanned = limit - position;
+			if (scanned >= Math.min(maxLength, SIZE)) {
+				throw new LineTooLongException();
+			}
+			if (!require(scanned + 1)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * return the stream of a message sent by DATA. it must be read to the end
+	 * before the next command is read.
+	 */
+	InputStream newDataStream() {
+		return new DataStream();
+	}
+
+	/**
+	 * make "n" bytes available from "position". it returns false if the
+	 * connection is closed before them.
+	 */
+	private boolean require(int n) throws IOException {
+		while (limit - position < n) {
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				return false;
+			}
+			limit += read;
+		}
+		return true;
+	}
+
+	private void requireData(int n) throws IOException {
+		if (!require(n)) {
+			throw new EOFException("Connection closed in DATA");
+		}
+	}
+
+	static final class LineTooLongException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LineTooLongException() {
+			super("Line too long");
+		}
+	}
+
+	private final class DataStream extends InputStream {
+		private boolean lineStart = true;
+		private boolean end = false;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read;
+			do {
+				read = read(b, 0, 1);
+			} while (read == 0);
+			return (read < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (end) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			requireData(1);
+			if (lineStart && buffer[position] == '.') {
+				requireData(2);
+				if (buffer[position + 1] == '\n') {
+					position += 2;
+					end = true;
+					return -1;
+				}
+				if (buffer[position + 1] == '\r') {
+					requireData(3);
+					if (buffer[position + 2] == '\n') {
+						position += 3;
+						end = true;
+						return -1;
+					}
+				}
+				// remove the dot which was added by the client
+				position++;
+				lineStart = false;
+			}
+
+			// copy to the end of the line at most
+			int available = Math.min(len, limit - position);
+			int n = 0;
+			while (n < available) {
+				if (buffer[position + n++] == '\n') {
+					break;
+				}
+			}
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			lineStart = (b[off + n - 1] == '\n');
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// skip the rest of the message
+			byte[] skipped = new byte[SIZE];
+			while (read(skipped, 0, skipped.length) >= 0) {
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.Session;
+
+/**
+ * an embeddable LMTP server of RFC 2033 which passes the received messages
+ * to an LmtpHandler as MessageWrapper. each connection is served by its own
+ * thread, and the message of DATA is parsed while it's received.
+ * 
+ * the load is limited by two numbers. at most "maxSessions" connections are
+ * served at once, and the others wait in the backlog of the socket. the
+ * messages being received or handled hold at most "maxInFlightBytes" bytes,
+ * and a client which can't get them in "bytesTimeout" is told to retry
+ * later.
+ */
+public final class LmtpServer implements Closeable {
+
+	public static final int DEFAULT_MAX_SESSIONS = 64;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+
+	private static final int DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private static final long DEFAULT_BYTES_TIMEOUT = 30 * 1000;
+
+	private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "lmtp-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	@Nonnull
+	private final LmtpHandler handler;
+
+	private final int maxInFlightBytes;
+
+	private final Semaphore sessions;
+
+	private final Semaphore bytes;
+
+	private final Set<Socket> sockets = Collections
+			.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	@Nullable
+	private volatile Session session;
+
+	@Nonnull
+	private volatile String hostName = "localhost";
+
+	private volatile int maxMessageSize;
+
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	private volatile long bytesTimeout = DEFAULT_BYTES_TIMEOUT;
+
+	@Nonnull
+	private volatile ThreadFactory threadFactory = DEFAULT_THREAD_FACTORY;
+
+	private ServerSocket serverSocket = null;
+
+	private volatile boolean closed = false;
+
+	public LmtpServer(@Nonnull LmtpHandler handler) {
+		this(handler, DEFAULT_MAX_SESSIONS, DEFAULT_MAX_IN_FLIGHT_BYTES);
+	}
+
+	/**
+	 * @param maxSessions
+	 *            is the number of the connections served at once.
+	 * @param maxInFlightBytes
+	 *            is the bytes of the messages being received or handled.
+	 */
+	public LmtpServer(@Nonnull LmtpHandler handler, int maxSessions,
+			int maxInFlightBytes) {
+		checkArgument(maxSessions > 0, "maxSessions: %s", maxSessions);
+		checkArgument(maxInFlightBytes > 0, "maxInFlightBytes: %s",
+				maxInFlightBytes);
+		this.handler = checkNotNull(handler);
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.maxMessageSize = maxInFlightBytes;
+		this.sessions = new Semaphore(maxSessions);
+		this.bytes = new Semaphore(maxInFlightBytes);
+	}
+
+	@Nullable
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * set the session of the created messages.
+	 */
+	public void setSession(@Nullable Session session) {
+		this.session = session;
+	}
+
+	@Nonnull
+	public String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * set the name of this server in the replies.
+	 */
+	public void setHostName(@Nonnull String hostName) {
+		this.hostName = checkNotNull(hostName);
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * a larger message is rejected. it's "maxInFlightBytes" by default, and
+	 * can't be larger than it.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		checkArgument(maxMessageSize > 0
+				&& maxMessageSize <= maxInFlightBytes, "maxMessageSize: %s",
+				maxMessageSize);
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * a connection is closed if the client sends nothing for "idleTimeout"
+	 * milliseconds.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		checkArgument(idleTimeout > 0, "idleTimeout: %s", idleTimeout);
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getBytesTimeout() {
+		return bytesTimeout;
+	}
+
+	/**
+	 * a message is answered with a temporary failure if the in-flight bytes
+	 * for it are not available in "bytesTimeout" milliseconds.
+	 */
+	public void setBytesTimeout(long bytesTimeout) {
+		checkArgument(bytesTimeout >= 0, "bytesTimeout: %s", bytesTimeout);
+		this.bytesTimeout = bytesTimeout;
+	}
+
+	/**
+	 * set the factory of the threads which accept and serve the connections.
+	 * it must be set before start().
+	 */
+	public void setThreadFactory(@Nonnull ThreadFactory threadFactory) {
+		this.threadFactory = checkNotNull(threadFactory);
+	}
+
+	/**
+	 * listen on "address" and start to accept the connections in another
+	 * thread.
+	 */
+	public synchronized void start(@Nonnull InetSocketAddress address)
+			throws IOException {
+		checkNotNull(address);
+		checkState(serverSocket == null, "already started");
+		checkState(!closed, "closed");
+		ServerSocket socket = new ServerSocket();
+		try {
+			socket.setReuseAddress(true);
+			socket.bind(address);
+			threadFactory.newThread(new Acceptor(socket)).start();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+		serverSocket = socket;
+	}
+
+	/**
+	 * return the port which this server listens on, or -1 if it's not
+	 * started.
+	 */
+	public synchronized int getLocalPort() {
+		return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+	}
+
+	/**
+	 * stop accepting, and close the connections being served.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		synchronized (this) {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		}
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+	}
+
+	@Nonnull
+	LmtpHandler getHandler() {
+		return handler;
+	}
+
+	@Nonnull
+	Semaphore getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * called by LmtpConnection when it ends.
+	 */
+	void closed(@Nonnull Socket socket) {
+		closeQuietly(socket);
+		if (sockets.remove(socket)) {
+			sessions.release();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private final class Acceptor implements Runnable {
+		private final ServerSocket serverSocket;
+
+		Acceptor(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+
+		public void run() {
+			while (!closed) {
+				try {
+					// the clients wait in the backlog while it's full
+					sessions.acquire();
+				} catch (InterruptedException e) {
+					return;
+				}
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					sessions.release();
+					continue;
+				}
+
+				sockets.add(socket);
+				try {
+					threadFactory.newThread(
+							new LmtpConnection(LmtpServer.this, socket))
+							.start();
+				} catch (RuntimeException e) {
+					closed(socket);
+					continue;
+				}
+				if (closed) {
+					closed(socket);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * the envelope of a message sent by an LMTP client: the name given by LHLO,
+ * the reverse-path of MAIL and the forward-paths of RCPT. the paths are the
+ * addresses without "&lt;" and "&gt;", and the null reverse-path is "".
+ */
+public final class LmtpTransaction {
+
+	@Nonnull
+	private final InetSocketAddress remoteAddress;
+
+	@Nonnull
+	private final String clientName;
+
+	@Nonnull
+	private final String sender;
+
+	@Nonnull
+	private final List<String> recipients;
+
+	LmtpTransaction(@Nonnull InetSocketAddress remoteAddress,
+			@Nonnull String clientName, @Nonnull String sender,
+			@Nonnull List<String> recipients) {
+		this.remoteAddress = checkNotNull(remoteAddress);
+		this.clientName = checkNotNull(clientName);
+		this.sender = checkNotNull(sender);
+		this.recipients = Collections.unmodifiableList(new ArrayList<String>(
+				recipients));
+	}
+
+	@Nonnull
+	public InetSocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * return the name which the client gave by LHLO.
+	 */
+	@Nonnull
+	public String getClientName() {
+		return clientName;
+	}
+
+	@Nonnull
+	public String getSender() {
+		return sender;
+	}
+
+	@Nonnull
+	public List<String> getRecipients() {
+		return recipients;
+	}
+
+	@Override
+	public String toString() {
+		return "LmtpTransaction [remoteAddress=" + remoteAddress
+				+ ", clientName=" + clientName + ", sender=" + sender
+				+ ", recipients=" + recipients + "]";
+	}
+}
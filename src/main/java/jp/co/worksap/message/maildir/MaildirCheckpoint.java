@@ -0,0 +1,246 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.maildir;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * the unique names of the processed messages of a Maildir, kept in a file so
+ * an ingest resumes after a restart. a name is appended to the file as a
+ * line when it's added, and the names of the deleted messages are removed
+ * by rewriting the file when they are more than the live ones.
+ * 
+ * the names are held in the memory too. this class is thread-safe.
+ */
+public final class MaildirCheckpoint implements Closeable {
+
+	// a small file is not rewritten even if most of the names are dead
+	private static final int MIN_COMPACTION_SIZE = 1024;
+
+	@Nonnull
+	private final File file;
+
+	// the new file written by compact()
+	@Nonnull
+	private final File temporary;
+
+	private final Set<String> names = new HashSet<String>();
+
+	// the lines in the file, including the dead names
+	private int lines = 0;
+
+	private Writer writer;
+
+	/**
+	 * load the names in "file", or start with no name if it doesn't exist.
+	 * if compact() crashed after "file" was deleted, the names are loaded
+	 * from the new file which was written beside it.
+	 */
+	public MaildirCheckpoint(@Nonnull File file) throws IOException {
+		this.file = checkNotNull(file);
+		this.temporary = new File(file.getPath() + ".tmp");
+		recover();
+		File current = getCurrentFile();
+		if (current.exists()) {
+			truncate(current, load(current));
+		}
+		writer = openWriter(current, true);
+	}
+
+	@Nonnull
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized boolean contains(@Nonnull String uniqueName) {
+		return names.contains(uniqueName);
+	}
+
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * add "uniqueName" and append it to the file. it's flushed before this
+	 * method returns.
+	 */
+	public synchronized void add(@Nonnull String uniqueName)
+			throws IOException {
+		checkArgument(!uniqueName.isEmpty()
+				&& uniqueName.indexOf('\n') < 0
+				&& uniqueName.indexOf('\r') < 0, "uniqueName: %s",
+				uniqueName);
+		checkState(writer != null, "closed");
+		if (!names.add(uniqueName)) {
+			return;
+		}
+		writer.write(uniqueName);
+		writer.write('\n');
+		writer.flush();
+		lines++;
+	}
+
+	/**
+	 * forget the names which are not in "liveNames", such as the ones of the
+	 * deleted messages. the file is compacted when most of its lines are
+	 * forgotten.
+	 */
+	public synchronized void retainAll(@Nonnull Collection<String> liveNames)
+			throws IOException {
+		names.retainAll(liveNames);
+		if (lines >= MIN_COMPACTION_SIZE && lines > names.size() * 2) {
+			compact();
+		}
+	}
+
+	/**
+	 * rewrite the file with the current names. the new file is written
+	 * beside it, synced and renamed, so a crash leaves one of them complete.
+	 */
+	public synchronized void compact() throws IOException {
+		checkState(writer != null, "closed");
+		writer.close();
+		writer = null;
+		try {
+			recover();
+			if (!file.exists() && temporary.exists()) {
+				// the new file is the only complete one, don't overwrite it
+				throw new IOException("Failed to rename " + temporary
+						+ " to " + file);
+			}
+
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				Writer buffered = new OutputStreamWriter(out, Charsets.UTF_8);
+				for (String name : names) {
+					buffered.write(name);
+					buffered.write('\n');
+				}
+				buffered.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			if (!temporary.renameTo(file)) {
+				// renameTo() doesn't replace a file on some platforms. the
+				// constructor loads the new file if it crashes here.
+				if (!file.delete() || !temporary.renameTo(file)) {
+					throw new IOException("Failed to replace " + file
+							+ " with " + temporary);
+				}
+			}
+			lines = names.size();
+		} finally {
+			writer = openWriter(getCurrentFile(), true);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * move the new file of compact() to "file" if "file" was deleted.
+	 */
+	private void recover() {
+		if (!file.exists() && temporary.exists()) {
+			temporary.renameTo(file);
+		}
+	}
+
+	/**
+	 * return the file which has the names. it's the new file of compact()
+	 * only when "file" was deleted and the new file can't be renamed.
+	 */
+	private File getCurrentFile() {
+		return (!file.exists() && temporary.exists()) ? temporary : file;
+	}
+
+	/**
+	 * load the names in "source", and return the length of its complete
+	 * lines.
+	 */
+	private long load(File source) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(source));
+		try {
+			// "\n" is not a part of any other char in UTF-8
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long position = 0;
+			long end = 0;
+			int b;
+			while ((b = in.read()) >= 0) {
+				position++;
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				if (line.size() > 0) {
+					names.add(new String(line.toByteArray(), Charsets.UTF_8));
+					lines++;
+				}
+				line.reset();
+				end = position;
+			}
+			// a line without "\n" was not completely written, so it's
+			// ignored. the message is processed again.
+			return end;
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * cut the incomplete line at the end of "target", so the next name is
+	 * not appended to it.
+	 */
+	private static void truncate(File target, long length) throws IOException {
+		if (target.length() <= length) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(target, "rw");
+		try {
+			raf.getChannel().truncate(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Writer openWriter(File file, boolean append)
+			throws IOException {
+		return new OutputStreamWriter(new FileOutputStream(file, append),
+				Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,178 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.maildir;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import jp.co.worksap.message.batch.MessageBatchDecoder;
+import jp.co.worksap.message.batch.MessageBatchListener;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+/**
+ * decodes the messages which arrive in "new" and "cur" of a Maildir. poll()
+ * passes the messages which are not processed yet to a listener, and their
+ * unique names are kept in a MaildirCheckpoint, so a message is processed
+ * once even if it's moved from "new" to "cur", or the ingest is restarted.
+ * the unique name is set to the UID of the message.
+ * 
+ * a directory is listed only when its modification time changes, so a poll
+ * of a quiet Maildir doesn't read the names of its messages. poll() is
+ * expected to be called periodically, such as by a
+ * ScheduledExecutorService. this class is thread-safe.
+ */
+public final class MaildirIngest implements Closeable {
+
+	// "new" is listed before "cur", so a message which is moved while they
+	// are listed is found in "cur".
+	private static final String[] SUBDIRECTORIES = { "new", "cur" };
+
+	// the modification time of some file systems is in seconds, so a
+	// directory modified in this period before the listing is listed again.
+	private static final long TIMESTAMP_RESOLUTION = 2000;
+
+	@Nonnull
+	private final File maildir;
+
+	@Nonnull
+	private final MaildirCheckpoint checkpoint;
+
+	@Nonnull
+	private final MessageBatchDecoder decoder;
+
+	// the modification times of SUBDIRECTORIES when they were listed last
+	private final long[] listedTimes = new long[SUBDIRECTORIES.length];
+
+	/**
+	 * @param checkpointFile
+	 *            keeps the unique names of the processed messages. it's
+	 *            created if it doesn't exist.
+	 * @param decoder
+	 *            decodes the messages on its executor.
+	 */
+	public MaildirIngest(@Nonnull File maildir, @Nonnull File checkpointFile,
+			@Nonnull MessageBatchDecoder decoder) throws IOException {
+		this.maildir = checkNotNull(maildir);
+		this.decoder = checkNotNull(decoder);
+		this.checkpoint = new MaildirCheckpoint(checkpointFile);
+		forgetListedTimes();
+	}
+
+	@Nonnull
+	public MaildirCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * pass the messages which are not processed yet to "listener". it returns
+	 * the number of the messages passed to listener.decoded() without an
+	 * exception, which are added to the checkpoint.
+	 * 
+	 * a message which fails is not added, and it's passed to the listener
+	 * again in a later poll.
+	 */
+	public synchronized int poll(
+			@Nonnull final MessageBatchListener<? super File> listener)
+			throws IOException, InterruptedException {
+		checkNotNull(listener);
+		List<File> arrivals = new ArrayList<File>();
+		Set<String> arrivalNames = new HashSet<String>();
+		Set<String> liveNames = new HashSet<String>();
+		boolean listedAll = true;
+
+		for (int i = 0; i < SUBDIRECTORIES.length; i++) {
+			File directory = new File(maildir, SUBDIRECTORIES[i]);
+			long modified = directory.lastModified();
+			if (modified == listedTimes[i]) {
+				listedAll = false;
+				continue;
+			}
+			long listed = System.currentTimeMillis();
+			String[] fileNames = directory.list();
+			if (fileNames == null) {
+				throw new IOException("Failed to list the files in "
+						+ directory);
+			}
+			listedTimes[i] = (listed - modified > TIMESTAMP_RESOLUTION) ? modified
+					: -1;
+
+			for (String fileName : fileNames) {
+				if (fileName.startsWith(".")) {
+					continue;
+				}
+				String uniqueName = getUniqueName(fileName);
+				liveNames.add(uniqueName);
+				if (!checkpoint.contains(uniqueName)
+						&& arrivalNames.add(uniqueName)) {
+					arrivals.add(new File(directory, fileName));
+				}
+			}
+		}
+
+		final AtomicInteger processed = new AtomicInteger();
+		final AtomicBoolean retry = new AtomicBoolean();
+		decoder.decodeFiles(arrivals, new MessageBatchListener<File>() {
+			public void decoded(File source, MessageWrapper message)
+					throws Exception {
+				String uniqueName = getUniqueName(source.getName());
+				message.setUID(uniqueName);
+				listener.decoded(source, message);
+				checkpoint.add(uniqueName);
+				processed.incrementAndGet();
+			}
+
+			public void failed(File source, Exception cause) {
+				retry.set(true);
+				if (source.exists()) {
+					listener.failed(source, cause);
+				}
+				// otherwise it's moved to "cur" or deleted while it's read
+			}
+		});
+
+		if (retry.get()) {
+			forgetListedTimes();
+		} else if (listedAll) {
+			checkpoint.retainAll(liveNames);
+		}
+		return processed.get();
+	}
+
+	public void close() throws IOException {
+		checkpoint.close();
+	}
+
+	/**
+	 * return the unique name of a file in a Maildir, which is the file name
+	 * without the info after ":".
+	 */
+	@Nonnull
+	static String getUniqueName(@Nonnull String fileName) {
+		int colon = fileName.indexOf(':');
+		return (colon < 0) ? fileName : fileName.substring(0, colon);
+	}
+
+	private void forgetListedTimes() {
+		for (int i = 0; i < listedTimes.length; i++) {
+			listedTimes[i] = -1;
+		}
+	}
+}
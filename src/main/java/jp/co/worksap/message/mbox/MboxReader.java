@@ -0,0 +1,435 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.mbox;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import jp.co.worksap.message.util.MappedSharedInputStream;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+/**
+ * reads the messages of an mbox file of RFC 4155 lazily. the file is
+ * memory-mapped by regions, and each message is a slice of the mapping
+ * instead of a copy. only the message which has escaped "&gt;From " lines is
+ * copied to unescape them like mboxrd.
+ * 
+ * a message begins after a "From " line, and ends before the line break
+ * which precedes the next one. the blank line which mbox writers put before
+ * "From " is not a part of the message.
+ */
+public final class MboxReader implements Iterable<MessageWrapper> {
+
+	// a mapping is limited to Integer.MAX_VALUE bytes
+	private static final int MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+	private static final byte[] FROM = { 'F', 'r', 'o', 'm', ' ' };
+
+	@Nullable
+	private final Session session;
+
+	@Nonnull
+	private final File file;
+
+	private final int regionSize;
+
+	private volatile boolean unescapeFrom = true;
+
+	public MboxReader(@Nullable Session session, @Nonnull File file) {
+		this(session, file, MAX_REGION_SIZE);
+	}
+
+	/**
+	 * @param regionSize
+	 *            is the size of a mapping. a message larger than it can't be
+	 *            read.
+	 */
+	MboxReader(@Nullable Session session, @Nonnull File file, int regionSize) {
+		checkArgument(regionSize > FROM.length, "regionSize: %s", regionSize);
+		this.session = session;
+		this.file = checkNotNull(file);
+		this.regionSize = regionSize;
+	}
+
+	public boolean isUnescapeFrom() {
+		return unescapeFrom;
+	}
+
+	/**
+	 * if it's true, which is the default, one "&gt;" is removed from the lines
+	 * which match "^&gt;+From ". false keeps them as they are.
+	 */
+	public void setUnescapeFrom(boolean unescapeFrom) {
+		this.unescapeFrom = unescapeFrom;
+	}
+
+	/**
+	 * return the messages in the order of the file. the iterator throws a
+	 * RuntimeException if the file can't be read.
+	 */
+	public Iterator<MessageWrapper> iterator() {
+		final Scanner scanner = new Scanner(unescapeFrom);
+		return new Iterator<MessageWrapper>() {
+			public boolean hasNext() {
+				return scanner.hasNext();
+			}
+
+			public MessageWrapper next() {
+				return scanner.next().toMessage();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * return the messages in the order of the file, which are created on
+	 * "executor". the file is scanned on the calling thread, and at most
+	 * "window" messages are created ahead of the one returned by next().
+	 */
+	@Nonnull
+	public Iterable<MessageWrapper> parallel(
+			@Nonnull final ExecutorService executor, final int window) {
+		checkNotNull(executor);
+		checkArgument(window > 0, "window: %s", window);
+		return new Iterable<MessageWrapper>() {
+			public Iterator<MessageWrapper> iterator() {
+				return new ParallelIterator(new Scanner(unescapeFrom),
+						executor, window);
+			}
+		};
+	}
+
+	/**
+	 * a message in a mapped region.
+	 */
+	private final class Slice implements Callable<MessageWrapper> {
+		private final ByteBuffer bytes;
+		private final boolean unescape;
+
+		private Slice(ByteBuffer bytes, boolean unescape) {
+			this.bytes = bytes;
+			this.unescape = unescape;
+		}
+
+		public MessageWrapper call() {
+			return toMessage();
+		}
+
+		MessageWrapper toMessage() {
+			if (unescape && hasEscapedFrom(bytes)) {
+				return new MessageWrapper(session,
+						new SharedByteArrayInputStream(unescape(bytes)));
+			}
+			return new MessageWrapper(session, new MappedSharedInputStream(
+					bytes));
+		}
+	}
+
+	/**
+	 * finds the messages in the file. it maps the next region when the
+	 * current one ends in the middle of a message.
+	 */
+	private final class Scanner {
+		private final boolean unescape;
+		private final long fileSize;
+
+		// the mapping of [regionStart, regionStart + region.limit())
+		private ByteBuffer region = null;
+		private long regionStart = 0;
+
+		// the beginning of the next message in the region
+		private int position = 0;
+
+		private Slice next = null;
+
+		Scanner(boolean unescape) {
+			this.unescape = unescape;
+			this.fileSize = file.length();
+		}
+
+		boolean hasNext() {
+			if (next == null) {
+				try {
+					next = scan();
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to read " + file, e);
+				}
+			}
+			return next != null;
+		}
+
+		Slice next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Slice slice = next;
+			next = null;
+			return slice;
+		}
+
+		private Slice scan() throws IOException {
+			if (region == null) {
+				map(0);
+			}
+			while (true) {
+				if (position >= region.limit() && isLastRegion()) {
+					return null;
+				}
+
+				int start = position;
+				if (startsWithFrom(region, start)) {
+					start = skipLine(region, start);
+				}
+				int separator = findSeparator(region, start);
+				if (separator < 0 && !isLastRegion()) {
+					if (position == 0) {
+						throw new IOException("A message at " + regionStart
+								+ " is larger than " + regionSize + " bytes");
+					}
+					// the message continues in the next region
+					map(regionStart + position);
+					continue;
+				}
+
+				int end;
+				if (separator < 0) {
+					end = trimLastLine(region, start, region.limit());
+					position = region.limit();
+				} else {
+					// an empty message is followed by "From " right away
+					end = trimCr(region, start, Math.max(separator, start));
+					position = separator + 1;
+				}
+				if (isBlank(region, start, end)) {
+					// the blank lines before the first "From " line
+					continue;
+				}
+				ByteBuffer bytes = region.duplicate();
+				bytes.limit(end);
+				bytes.position(start);
+				return new Slice(bytes.slice(), unescape);
+			}
+		}
+
+		private boolean isLastRegion() {
+			return regionStart + region.limit() >= fileSize;
+		}
+
+		private void map(long start) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long size = Math.min(regionSize, fileSize - start);
+				// the mapping stays valid after the file is closed
+				region = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						start, size);
+			} finally {
+				raf.close();
+			}
+			regionStart = start;
+			position = 0;
+		}
+	}
+
+	/**
+	 * creates the messages on the executor ahead of next().
+	 */
+	private static final class ParallelIterator implements
+			Iterator<MessageWrapper> {
+		private final Scanner scanner;
+		private final ExecutorService executor;
+		private final int window;
+		private final Queue<Future<MessageWrapper>> pending;
+
+		ParallelIterator(Scanner scanner, ExecutorService executor, int window) {
+			this.scanner = scanner;
+			this.executor = executor;
+			this.window = window;
+			this.pending = new ArrayDeque<Future<MessageWrapper>>(window);
+		}
+
+		public boolean hasNext() {
+			fill();
+			return !pending.isEmpty();
+		}
+
+		public MessageWrapper next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Future<MessageWrapper> future = pending.remove();
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while reading "
+						+ "a message", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException("Failed to read a message", cause);
+			} finally {
+				fill();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void fill() {
+			while (pending.size() < window && scanner.hasNext()) {
+				pending.add(executor.submit(scanner.next()));
+			}
+		}
+	}
+
+	private static boolean startsWithFrom(ByteBuffer buffer, int index) {
+		if (index + FROM.length > buffer.limit()) {
+			return false;
+		}
+		for (int i = 0; i < FROM.length; i++) {
+			if (buffer.get(index + i) != FROM[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * return the index after the line break of the line at "index".
+	 */
+	private static int skipLine(ByteBuffer buffer, int index) {
+		int limit = buffer.limit();
+		for (int i = index; i < limit; i++) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * return the index of "\n" which is followed by "From " after "start",
+	 * or -1 if it's not found.
+	 */
+	private static int findSeparator(ByteBuffer buffer, int start) {
+		int last = buffer.limit() - FROM.length - 1;
+		for (int i = Math.max(start - 1, 0); i <= last; i++) {
+			if (buffer.get(i) == '\n' && buffer.get(i + 1) == 'F'
+					&& startsWithFrom(buffer, i + 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * remove "\r" of "\r\n" before "From ".
+	 */
+	private static int trimCr(ByteBuffer buffer, int start, int end) {
+		return (end > start && buffer.get(end - 1) == '\r') ? end - 1 : end;
+	}
+
+	/**
+	 * remove the line break of the blank line at the end of the file, which
+	 * would precede the next "From " line.
+	 */
+	private static int trimLastLine(ByteBuffer buffer, int start, int end) {
+		if (end - start < 2 || buffer.get(end - 1) != '\n') {
+			return end;
+		}
+		int lineEnd = trimCr(buffer, start, end - 1);
+		if (lineEnd > start && buffer.get(lineEnd - 1) == '\n') {
+			return lineEnd;
+		}
+		return end;
+	}
+
+	private static boolean isBlank(ByteBuffer buffer, int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b != '\r' && b != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * return true if a line of "bytes" matches "^&gt;+From ".
+	 */
+	private static boolean hasEscapedFrom(ByteBuffer bytes) {
+		int limit = bytes.limit();
+		for (int i = 0; i < limit; i++) {
+			if ((i == 0 || bytes.get(i - 1) == '\n')
+					&& escapedFromLength(bytes, i) > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * return the number of "&gt;" if "^&gt;+From " starts at "index",
+	 * otherwise 0.
+	 */
+	private static int escapedFromLength(ByteBuffer bytes, int index) {
+		int i = index;
+		while (i < bytes.limit() && bytes.get(i) == '>') {
+			i++;
+		}
+		if (i == index || !startsWithFrom(bytes, i)) {
+			return 0;
+		}
+		return i - index;
+	}
+
+	private static byte[] unescape(ByteBuffer bytes) {
+		int limit = bytes.limit();
+		byte[] unescaped = new byte[limit];
+		int length = 0;
+		for (int i = 0; i < limit; i++) {
+			if ((i == 0 || bytes.get(i - 1) == '\n')
+					&& escapedFromLength(bytes, i) > 0) {
+				// remove one ">"
+				continue;
+			}
+			unescaped[length++] = bytes.get(i);
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(unescaped, 0, result, 0, length);
+		return result;
+	}
+}
@@ -0,0 +1,159 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * counts the stages, the bytes and the chosen charsets, and keeps a
+ * histogram of the latencies, without locks. the values can be read while
+ * the stages are reported, but a set of them read at once may be off by the
+ * stages reported meanwhile.
+ * 
+ * the bucket i of the histogram counts the stages which took less than 2^i
+ * microseconds and not less than 2^(i-1) microseconds. the last bucket also
+ * counts the slower ones.
+ */
+public class CountingDecodeMetricsListener implements DecodeMetricsListener {
+	public static final int BUCKETS = 24;
+
+	private static final int STAGES = DecodeStage.values().length;
+
+	private final AtomicLongArray counts = new AtomicLongArray(STAGES);
+
+	private final AtomicLongArray totalNanos = new AtomicLongArray(STAGES);
+
+	private final AtomicLongArray maxNanos = new AtomicLongArray(STAGES);
+
+	private final AtomicLongArray bytes = new AtomicLongArray(STAGES);
+
+	private final AtomicLongArray histogram = new AtomicLongArray(STAGES
+			* BUCKETS);
+
+	private final List<ConcurrentMap<String, AtomicLong>> charsets;
+
+	public CountingDecodeMetricsListener() {
+		charsets = new ArrayList<ConcurrentMap<String, AtomicLong>>(STAGES);
+		for (int i = 0; i < STAGES; i++) {
+			charsets.add(new ConcurrentHashMap<String, AtomicLong>());
+		}
+	}
+
+	public void stageCompleted(DecodeStage stage, String uid,
+			int messageSize, long elapsedNanos, long bytes, String charset) {
+		int index = stage.ordinal();
+		counts.incrementAndGet(index);
+		totalNanos.addAndGet(index, elapsedNanos);
+		updateMax(index, elapsedNanos);
+		if (bytes > 0) {
+			this.bytes.addAndGet(index, bytes);
+		}
+		histogram.incrementAndGet(index * BUCKETS + bucket(elapsedNanos));
+		if (charset != null) {
+			countCharset(charsets.get(index), charset);
+		}
+	}
+
+	public void charsetGuessed(String uid, int messageSize,
+			long elapsedNanos, long bytes, Set<String> candidates,
+			String charset) {
+		// counted by stageCompleted()
+	}
+
+	public long getCount(@Nonnull DecodeStage stage) {
+		return counts.get(stage.ordinal());
+	}
+
+	public long getTotalNanos(@Nonnull DecodeStage stage) {
+		return totalNanos.get(stage.ordinal());
+	}
+
+	public long getMaxNanos(@Nonnull DecodeStage stage) {
+		return maxNanos.get(stage.ordinal());
+	}
+
+	/**
+	 * return the sum of the bytes processed by the stage. the stages which
+	 * reported an unknown size are not included.
+	 */
+	public long getBytes(@Nonnull DecodeStage stage) {
+		return bytes.get(stage.ordinal());
+	}
+
+	/**
+	 * return a copy of the histogram of the latencies. see the class comment
+	 * for the buckets.
+	 */
+	@Nonnull
+	public long[] getHistogram(@Nonnull DecodeStage stage) {
+		long[] copy = new long[BUCKETS];
+		int offset = stage.ordinal() * BUCKETS;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = histogram.get(offset + i);
+		}
+		return copy;
+	}
+
+	/**
+	 * return a copy of the number of the times each charset was chosen by the
+	 * stage.
+	 */
+	@Nonnull
+	public Map<String, Long> getCharsetCounts(@Nonnull DecodeStage stage) {
+		Map<String, Long> copy = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : charsets.get(
+				stage.ordinal()).entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().get());
+		}
+		return copy;
+	}
+
+	static int bucket(long elapsedNanos) {
+		long micros = elapsedNanos / 1000;
+		if (micros <= 0) {
+			return 0;
+		}
+		int bucket = Long.SIZE - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	private void updateMax(int index, long elapsedNanos) {
+		long max = maxNanos.get(index);
+		while (elapsedNanos > max) {
+			if (maxNanos.compareAndSet(index, max, elapsedNanos)) {
+				return;
+			}
+			max = maxNanos.get(index);
+		}
+	}
+
+	private static void countCharset(
+			ConcurrentMap<String, AtomicLong> counts, String charset) {
+		AtomicLong count = counts.get(charset);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(charset, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+}
@@ -0,0 +1,55 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nonnull;
+
+/**
+ * holds the listener which is used by the wrappers which have no listener of
+ * their own.
+ */
+public final class DecodeMetrics {
+	@Nonnull
+	private static volatile DecodeMetricsListener listener = DecodeMetricsListener.NOOP;
+
+	private DecodeMetrics() {
+	}
+
+	@Nonnull
+	public static DecodeMetricsListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * register the listener globally. set DecodeMetricsListener.NOOP to stop
+	 * the measurement.
+	 */
+	public static void setListener(@Nonnull DecodeMetricsListener listener) {
+		DecodeMetrics.listener = checkNotNull(listener);
+	}
+
+	/**
+	 * return the start time of a stage, or 0 without reading the clock if
+	 * the listener is NOOP. a DecodeStageListener is told that the stage
+	 * starts.
+	 */
+	public static long start(@Nonnull DecodeMetricsListener listener,
+			@Nonnull DecodeStage stage) {
+		if (listener == DecodeMetricsListener.NOOP) {
+			return 0;
+		}
+		if (listener instanceof DecodeStageListener) {
+			((DecodeStageListener) listener).stageStarted(stage);
+		}
+		return System.nanoTime();
+	}
+}
@@ -0,0 +1,72 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.metrics;
+
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * receives the metrics of each decoding stage. it is called on the thread
+ * which decodes, so it must be cheap and thread-safe. a stage which throws
+ * an exception is not reported.
+ * 
+ * MessageWrapper measures the stages only when the listener is not NOOP, so
+ * NOOP costs nothing.
+ */
+public interface DecodeMetricsListener {
+
+	/**
+	 * the listener which does nothing. it's the default.
+	 */
+	DecodeMetricsListener NOOP = new DecodeMetricsListener() {
+		public void stageCompleted(DecodeStage stage, String uid,
+				int messageSize, long elapsedNanos, long bytes, String charset) {
+		}
+
+		public void charsetGuessed(String uid, int messageSize,
+				long elapsedNanos, long bytes, Set<String> candidates,
+				String charset) {
+		}
+	};
+
+	/**
+	 * @param uid
+	 *            is set by MessageWrapper.setUID(), or null if it's not set.
+	 * @param messageSize
+	 *            is the size of the content of the message, or -1 if it's
+	 *            unknown.
+	 * @param bytes
+	 *            is the number of the bytes processed by the stage, or -1 if
+	 *            it's unknown.
+	 * @param charset
+	 *            is the charset which the stage chose, or null if it did not
+	 *            choose a charset.
+	 */
+	void stageCompleted(@Nonnull DecodeStage stage, @Nullable String uid,
+			int messageSize, long elapsedNanos, long bytes,
+			@Nullable String charset);
+
+	/**
+	 * called after stageCompleted() of DecodeStage.CHARSET_GUESS with the
+	 * same values and the candidates of the guess.
+	 * 
+	 * @param candidates
+	 *            are the charsets found in the headers, in the order of the
+	 *            headers.
+	 * @param charset
+	 *            is the guessed one, or null if no candidate could decode the
+	 *            input.
+	 */
+	void charsetGuessed(@Nullable String uid, int messageSize,
+			long elapsedNanos, long bytes, @Nonnull Set<String> candidates,
+			@Nullable String charset);
+}
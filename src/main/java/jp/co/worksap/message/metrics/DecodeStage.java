@@ -0,0 +1,47 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.metrics;
+
+/**
+ * the stages of decoding which are reported to DecodeMetricsListener. the
+ * repair stages are reported in addition to the stage which calls them, so
+ * CONTENT_IO_RECOVERY is also counted in CONTENT_DECODE for example.
+ */
+public enum DecodeStage {
+	/** MessageWrapper.getSubject() decodes the Subject field */
+	SUBJECT_DECODE,
+
+	/** MessageWrapper decodes From, Reply-To or a recipient field */
+	ADDRESS_DECODE,
+
+	/** MessageWrapper.getContent() decodes the content */
+	CONTENT_DECODE,
+
+	/** the file names of the attachments are repaired */
+	FILE_NAME_FIX,
+
+	/** CharsetGuesser guesses the charset of a content without charset */
+	CHARSET_GUESS,
+
+	/**
+	 * the content is decoded ignoring Content-Transfer-Encoding because
+	 * JavaMail threw IOException
+	 */
+	CONTENT_IO_RECOVERY,
+
+	/** the wrong charset of Content-Type is rewritten to the mapping one */
+	CHARSET_REWRITE,
+
+	/** Quoted-printable Shift_JIS content is decoded as MS932 */
+	QP_SHIFT_JIS,
+
+	/** an attachment of the unknown encoding "8-bit" is read as 7bit */
+	EIGHT_BIT_RETRY
+}
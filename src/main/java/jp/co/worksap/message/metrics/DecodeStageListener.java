@@ -0,0 +1,27 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.metrics;
+
+import javax.annotation.Nonnull;
+
+/**
+ * a DecodeMetricsListener which is told when a stage starts too, to time
+ * something around the stage. stageStarted() is called on the thread which
+ * decodes, just before the start time of the stage is taken.
+ * 
+ * the stages nest, so a stage is completed before the stage which started
+ * it. a stage which throws an exception is started but not completed. the
+ * stage of stageCompleted() may not have been started when the listener was
+ * set while the stage ran.
+ */
+public interface DecodeStageListener extends DecodeMetricsListener {
+
+	void stageStarted(@Nonnull DecodeStage stage);
+}
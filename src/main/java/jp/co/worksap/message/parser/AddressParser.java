@@ -26,8 +26,14 @@ import jp.co.worksap.message.decoder.HeaderDecoder;
 import jp.co.worksap.message.util.CharsetUtility;
 import jp.co.worksap.message.util.Encoding;
 
+/**
+ * repairs the addresses which JavaMail can't decode. it has no state, so an
+ * instance can be shared by threads.
+ */
 public class AddressParser {
 	
+	private static final HeaderDecoder HEADER_DECODER = new HeaderDecoder();
+
 	private static final Pattern IN_BRACKET_FILTER = Pattern.compile("<(.*)>",
 			Pattern.CASE_INSENSITIVE);
 	private static final Pattern IN_DOUBLE_QUOTATION_FILTER = Pattern.compile(
@@ -83,8 +89,7 @@ public class AddressParser {
 
 	public InternetAddress getAddressFromRawString(String text)
 			throws MessagingException {
-		HeaderDecoder decoder = new HeaderDecoder();
-		String decoded = decoder.decodeAddress(text);
+		String decoded = HEADER_DECODER.decodeAddress(text);
 		String email = getEmail(decoded);
 		String personal = null;
 		if (text.contains("\"")) {
@@ -9,11 +9,15 @@
 
 package jp.co.worksap.message.parser;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.Enumeration;
+import java.util.Set;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -21,6 +25,10 @@ import javax.mail.Multipart;
 import javax.mail.internet.MimeBodyPart;
 
 import jp.co.worksap.message.decoder.HeaderDecoder;
+import jp.co.worksap.message.metrics.DecodeMetrics;
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+import jp.co.worksap.message.metrics.DecodeStage;
+import jp.co.worksap.message.util.CharsetRegistry;
 import jp.co.worksap.message.util.StringValidator;
 import jp.co.worksap.message.wrapper.CharsetGuesser;
 
@@ -29,11 +37,48 @@ import com.google.common.base.Strings;
 public class AttachedFileParser {
 	private static final String breakLine = "\r\n";
 	private static final String NO_FILE_NAME = "no file name";
+	private static final HeaderDecoder HEADER_DECODER = new HeaderDecoder();
+	private static final CharsetGuesser CHARSET_GUESSER = new CharsetGuesser();
 	
 	private final Message message;
 
+	@Nullable
+	private Set<String> charsetCandidates;
+
+	@Nonnull
+	private final DecodeMetricsListener listener;
+
+	@Nullable
+	private final String uid;
+
 	public AttachedFileParser(Message message) {
+		this(message, null);
+	}
+
+	/**
+	 * @param charsetCandidates
+	 *            are found from the headers of "message" by
+	 *            CharsetGuesser.findCandidates(). if it's null, they are found
+	 *            when they are needed at first.
+	 */
+	public AttachedFileParser(Message message,
+			@Nullable Set<String> charsetCandidates) {
+		this(message, charsetCandidates, DecodeMetricsListener.NOOP, null);
+	}
+
+	/**
+	 * @param listener
+	 *            receives the metrics of the repairs.
+	 * @param uid
+	 *            is reported to "listener" with the metrics.
+	 */
+	public AttachedFileParser(Message message,
+			@Nullable Set<String> charsetCandidates,
+			@Nonnull DecodeMetricsListener listener, @Nullable String uid) {
 		this.message = message;
+		this.charsetCandidates = charsetCandidates;
+		this.listener = checkNotNull(listener);
+		this.uid = uid;
 	}
 
 	public String decodeFileName(BodyPart body) throws MessagingException {
@@ -81,9 +126,7 @@ public class AttachedFileParser {
 			fileHeader.append(breakLine);
 		}
 
-		HeaderDecoder decoder = new HeaderDecoder();
-		String fileName = decoder.decodeFileName(fileHeader.toString());
-		return fileName;
+		return HEADER_DECODER.decodeFileName(fileHeader.toString());
 	}
 
 	public void fixFileName(Multipart mp) throws MessagingException,
@@ -91,7 +134,7 @@ public class AttachedFileParser {
 		for (int i = 0; i < mp.getCount(); i++) {
 			BodyPart body = mp.getBodyPart(i);
 			Object bodyContent = getBodyContent(body);
-			if (body.getContent() instanceof Multipart) {
+			if (bodyContent instanceof Multipart) {
 				fixFileName((Multipart) bodyContent);
 			}
 
@@ -99,18 +142,7 @@ public class AttachedFileParser {
 			if (fileName == null || fileName.equals("")) {
 				continue;
 			}
-
-			if (!StringValidator.isValid(fileName)) {
-				CharsetGuesser guesser = new CharsetGuesser();
-				String charset = guesser.guessCharset(message.getAllHeaders(),
-						new ByteArrayInputStream(fileName.getBytes()));
-				if (!charset.isEmpty()) {
-					try {
-						fileName = new String(fileName.getBytes(), charset);
-					} catch (UnsupportedEncodingException e) {
-					}
-				}
-			}
+			fileName = repairFileName(fileName);
 
 			try {
 				body.setFileName(fileName);
@@ -132,14 +164,60 @@ public class AttachedFileParser {
 		}
 	}
 
+	/**
+	 * return "fileName" decoded again with the charset guessed from the
+	 * headers of the message if it has invalid chars, otherwise "fileName"
+	 * itself.
+	 */
+	public String repairFileName(String fileName) throws MessagingException {
+		if (StringValidator.isValid(fileName)) {
+			return fileName;
+		}
+		if (charsetCandidates == null) {
+			charsetCandidates = CHARSET_GUESSER.findCandidates(message
+					.getAllHeaders());
+		}
+		long start = DecodeMetrics.start(listener, DecodeStage.CHARSET_GUESS);
+		byte[] bytes = fileName.getBytes();
+		String charset = CHARSET_GUESSER.guessCharset(charsetCandidates,
+				new ByteArrayInputStream(bytes));
+		if (listener != DecodeMetricsListener.NOOP) {
+			completeCharsetGuess(start, bytes.length, charset);
+		}
+		if (!charset.isEmpty()) {
+			return new String(bytes, CharsetRegistry.getDefault().forName(
+					charset));
+		}
+		return fileName;
+	}
+
+	private void completeCharsetGuess(long start, long bytes, String charset)
+			throws MessagingException {
+		long elapsed = System.nanoTime() - start;
+		int size = message.getSize();
+		String guessed = charset.isEmpty() ? null : charset;
+		listener.stageCompleted(DecodeStage.CHARSET_GUESS, uid, size,
+				elapsed, bytes, guessed);
+		listener.charsetGuessed(uid, size, elapsed, bytes, charsetCandidates,
+				guessed);
+	}
+
 	private Object getBodyContent(BodyPart p) throws IOException,
 			MessagingException {
 		try {
 			return p.getContent();
 		} catch (IOException e) {
 			if (e.getMessage().equals("Unknown encoding: 8-bit")) {
+				long start = DecodeMetrics.start(listener,
+						DecodeStage.EIGHT_BIT_RETRY);
 				p.setHeader("Content-Transfer-Encoding", "7bit");
-				return p.getContent();
+				Object content = p.getContent();
+				if (listener != DecodeMetricsListener.NOOP) {
+					listener.stageCompleted(DecodeStage.EIGHT_BIT_RETRY, uid,
+							message.getSize(), System.nanoTime() - start,
+							p.getSize(), null);
+				}
+				return content;
 			}
 			throw e;
 		}
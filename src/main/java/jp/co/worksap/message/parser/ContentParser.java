@@ -11,10 +11,10 @@ package jp.co.worksap.message.parser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
 import javax.mail.internet.MimeMessage;
 
 import jp.co.worksap.message.decoder.ContentDecoder;
@@ -22,7 +22,9 @@ import jp.co.worksap.message.util.Encoding;
 
 public class ContentParser {
 	
-	private MimeMessage instance;
+	private static final ContentDecoder CONTENT_DECODER = new ContentDecoder();
+
+	private final MimeMessage instance;
 	
 	public ContentParser(MimeMessage instance) {
 		this.instance = instance;
@@ -34,8 +36,7 @@ public class ContentParser {
 		String encoding = instance.getEncoding();
 		try {
 			if (!charset.isEmpty()) {
-				ContentDecoder decoder = new ContentDecoder();
-				return decoder.decodeContent(in, charset, encoding);
+				return CONTENT_DECODER.decodeContent(in, charset, encoding);
 			} else {
 				return instance.getContent();
 			}
@@ -46,13 +47,35 @@ public class ContentParser {
 		}
 	}
 	
+	/**
+	 * return a Reader which decodes the text content with "charset" while it
+	 * is read.
+	 */
+	public Reader openContent(String charset) throws MessagingException {
+		return CONTENT_DECODER.openContent(instance.getRawInputStream(), charset,
+				instance.getEncoding());
+	}
+
+	/**
+	 * write the text content decoded with "charset" into "out".
+	 */
+	public void parseContent(String charset, Appendable out)
+			throws MessagingException {
+		CONTENT_DECODER.decodeContent(instance.getRawInputStream(), charset,
+				instance.getEncoding(), out);
+	}
+
+	/**
+	 * return true if the content is not multipart and has no charset. it's
+	 * decided by Content-Type, so the content is not decoded.
+	 */
 	public boolean isMimeMessageIncludingNoCharset()
 			throws MessagingException, IOException {
 		if (!getCharset().isEmpty()) {
 			return false;
 		}
 
-		if (instance.getContent() instanceof Multipart) {
+		if (instance.isMimeType("multipart/*")) {
 			return false;
 		}
 
@@ -0,0 +1,108 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.push;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.internet.InternetHeaders;
+
+/**
+ * the headers of a part found by MessagePushParser. the path is the section
+ * number of IMAP, such as "1" or "2.1".
+ */
+public final class MessagePart {
+
+	@Nonnull
+	private final String path;
+
+	@Nonnull
+	private final String contentType;
+
+	@Nullable
+	private final String disposition;
+
+	@Nullable
+	private final String fileName;
+
+	@Nonnull
+	private final InternetHeaders headers;
+
+	MessagePart(@Nonnull String path, @Nonnull String contentType,
+			@Nullable String disposition, @Nullable String fileName,
+			@Nonnull InternetHeaders headers) {
+		this.path = checkNotNull(path);
+		this.contentType = checkNotNull(contentType);
+		this.disposition = disposition;
+		this.fileName = fileName;
+		this.headers = checkNotNull(headers);
+	}
+
+	@Nonnull
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * return the value of Content-Type, or "text/plain" if it's missing.
+	 */
+	@Nonnull
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * return the disposition type of Content-Disposition in lower case, such
+	 * as "attachment", or null if it's missing.
+	 */
+	@Nullable
+	public String getDisposition() {
+		return disposition;
+	}
+
+	/**
+	 * return the repaired file name like MessageWrapper does, or null if the
+	 * part has no file name.
+	 */
+	@Nullable
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * return the headers of the part. they must not be modified.
+	 */
+	@Nonnull
+	public InternetHeaders getHeaders() {
+		return headers;
+	}
+
+	public boolean isMultipart() {
+		return contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/");
+	}
+
+	/**
+	 * return true if the part has a file name or it's disposed as an
+	 * attachment.
+	 */
+	public boolean isAttachment() {
+		return fileName != null || "attachment".equals(disposition);
+	}
+
+	@Override
+	public String toString() {
+		return "MessagePart [path=" + path + ", contentType=" + contentType
+				+ ", disposition=" + disposition + ", fileName=" + fileName
+				+ "]";
+	}
+}
@@ -0,0 +1,62 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.push;
+
+import javax.annotation.Nonnull;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import jp.co.worksap.message.wrapper.MessageEnvelope;
+
+/**
+ * receives the events of MessagePushParser. they are called in the thread
+ * which calls feed() or finish(), while the rest of the message is not
+ * received yet. a MessagingException thrown here is thrown by feed() or
+ * finish().
+ */
+public interface MessagePushListener {
+
+	/**
+	 * called when the header block of the message is received. "envelope"
+	 * is same as MessageWrapper.getEnvelope() except that the size is 0,
+	 * because the body is not received yet.
+	 */
+	void envelopeDecoded(@Nonnull MessageEnvelope envelope,
+			@Nonnull InternetHeaders headers) throws MessagingException;
+
+	/**
+	 * called when the headers of a part are received. the body of a message
+	 * which is not multipart is the part "1".
+	 */
+	void partStarted(@Nonnull MessagePart part) throws MessagingException;
+
+	/**
+	 * called after partStarted() if the part is an attachment.
+	 */
+	void attachmentFound(@Nonnull MessagePart part) throws MessagingException;
+
+	/**
+	 * called when the boundary after a part is received.
+	 * 
+	 * @param size
+	 *            is the bytes of the content of the part, not including the
+	 *            headers.
+	 */
+	void partEnded(@Nonnull MessagePart part, long size)
+			throws MessagingException;
+
+	/**
+	 * called by MessagePushParser.finish() after the last partEnded().
+	 * 
+	 * @param size
+	 *            is the bytes of the whole message.
+	 */
+	void completed(long size) throws MessagingException;
+}
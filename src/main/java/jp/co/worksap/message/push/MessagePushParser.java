@@ -0,0 +1,406 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.push;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.ParseException;
+
+import jp.co.worksap.message.parser.AttachedFileParser;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import com.google.common.base.Charsets;
+
+/**
+ * parses a message from the chunks of bytes as they arrive, such as from a
+ * non-blocking channel, and tells a MessagePushListener about the envelope
+ * and the parts before the whole message is received.
+ * 
+ * only the headers are kept in the memory. the lines of the bodies are
+ * checked for the boundaries and dropped, so the memory doesn't depend on
+ * the size of the message. the bodies of message/rfc822 parts are not
+ * parsed. a parser is used for one message by one thread.
+ */
+public final class MessagePushParser {
+
+	public static final int DEFAULT_MAX_HEADER_SIZE = 1024 * 1024;
+
+	private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+	// "--", a boundary of 70 chars at most, "--" and some white spaces
+	private static final int MAX_BOUNDARY_LINE = 128;
+
+	private enum Mode {
+		HEADER, BODY
+	}
+
+	@Nullable
+	private final Session session;
+
+	@Nonnull
+	private final MessagePushListener listener;
+
+	private final int maxHeaderSize;
+
+	private Mode mode = Mode.HEADER;
+
+	// the bytes consumed so far
+	private long offset = 0;
+
+	// the current line. in a body only its head is kept.
+	private byte[] line = new byte[MAX_BOUNDARY_LINE];
+	private int lineLength = 0;
+	private boolean lineTruncated = false;
+	private long lineStart = 0;
+	// the length of the line break of the previous line
+	private int previousBreak = 0;
+
+	// the header block being received
+	private byte[] headerBlock = new byte[1024];
+	private int headerLength = 0;
+
+	// the open multiparts from the outermost one. the first one is the
+	// message itself.
+	private final List<Frame> frames = new ArrayList<Frame>();
+
+	// the path of the part whose headers are being received
+	private String headerPath = "";
+
+	// repairs the file names with the headers of the message
+	private AttachedFileParser fileNameParser = null;
+
+	private boolean finished = false;
+
+	public MessagePushParser(@Nullable Session session,
+			@Nonnull MessagePushListener listener) {
+		this(session, listener, DEFAULT_MAX_HEADER_SIZE);
+	}
+
+	/**
+	 * @param maxHeaderSize
+	 *            is the bytes of a header block. a larger one fails the
+	 *            parser.
+	 */
+	public MessagePushParser(@Nullable Session session,
+			@Nonnull MessagePushListener listener, int maxHeaderSize) {
+		checkArgument(maxHeaderSize > 0, "maxHeaderSize: %s", maxHeaderSize);
+		this.session = session;
+		this.listener = checkNotNull(listener);
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * parse the remaining bytes of "chunk". the position of "chunk" is moved
+	 * to its limit. the parser can't be used after it throws an exception.
+	 */
+	public void feed(@Nonnull ByteBuffer chunk) throws MessagingException {
+		checkState(!finished, "finished");
+		int limit = chunk.limit();
+		int start = chunk.position();
+		for (int i = start; i < limit; i++) {
+			if (chunk.get(i) != '\n') {
+				continue;
+			}
+			append(chunk, start, i + 1);
+			offset += i + 1 - start;
+			lineCompleted();
+			start = i + 1;
+		}
+		append(chunk, start, limit);
+		offset += limit - start;
+		chunk.position(limit);
+	}
+
+	/**
+	 * tell the end of the message. the parts which are still open are ended,
+	 * and MessagePushListener.completed() is called.
+	 */
+	public void finish() throws MessagingException {
+		checkState(!finished, "finished");
+		if (lineLength > 0 || lineTruncated) {
+			// the last line without a line break
+			lineCompleted();
+		}
+		if (mode == Mode.HEADER) {
+			headersCompleted();
+		}
+		for (int i = frames.size() - 1; i >= 0; i--) {
+			endChild(frames.get(i), offset);
+		}
+		finished = true;
+		listener.completed(offset);
+	}
+
+	private void append(ByteBuffer chunk, int start, int end)
+			throws MessagingException {
+		int length = end - start;
+		if (length == 0) {
+			return;
+		}
+		int room;
+		if (mode == Mode.HEADER) {
+			if (headerLength + lineLength + length > maxHeaderSize) {
+				throw new MessagingException("Header block is larger than "
+						+ maxHeaderSize + " bytes");
+			}
+			room = length;
+			if (lineLength + length > line.length) {
+				line = Arrays.copyOf(line, Math.max(line.length * 2,
+						lineLength + length));
+			}
+		} else {
+			room = Math.min(length, MAX_BOUNDARY_LINE - lineLength);
+			if (room < length) {
+				lineTruncated = true;
+			}
+		}
+		for (int i = 0; i < room; i++) {
+			line[lineLength + i] = chunk.get(start + i);
+		}
+		lineLength += room;
+	}
+
+	private void lineCompleted() throws MessagingException {
+		int breakLength = getBreakLength();
+		if (mode == Mode.HEADER) {
+			appendHeader();
+			if (lineLength == breakLength) {
+				headersCompleted();
+			}
+		} else if (!lineTruncated && lineLength >= 2 && line[0] == '-'
+				&& line[1] == '-') {
+			boundaryLine(lineLength - breakLength);
+		}
+		lineStart = offset;
+		previousBreak = breakLength;
+		lineLength = 0;
+		lineTruncated = false;
+		if (mode == Mode.BODY && line.length > MAX_BOUNDARY_LINE) {
+			line = new byte[MAX_BOUNDARY_LINE];
+		}
+	}
+
+	private int getBreakLength() {
+		if (lineLength == 0 || line[lineLength - 1] != '\n') {
+			return 0;
+		}
+		return (lineLength >= 2 && line[lineLength - 2] == '\r') ? 2 : 1;
+	}
+
+	private void appendHeader() {
+		if (headerLength + lineLength > headerBlock.length) {
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(
+					headerBlock.length * 2, headerLength + lineLength));
+		}
+		System.arraycopy(line, 0, headerBlock, headerLength, lineLength);
+		headerLength += lineLength;
+	}
+
+	private void headersCompleted() throws MessagingException {
+		byte[] block = Arrays.copyOf(headerBlock, headerLength);
+		headerLength = 0;
+		mode = Mode.BODY;
+		InternetHeaders headers = new InternetHeaders(
+				new ByteArrayInputStream(block));
+
+		if (frames.isEmpty()) {
+			messageHeadersCompleted(block, headers);
+			return;
+		}
+
+		MessagePart part = createPart(headerPath, headers);
+		Frame parent = frames.get(frames.size() - 1);
+		startChild(parent, part);
+		String boundary = getBoundary(part.getContentType());
+		if (boundary != null) {
+			frames.add(new Frame(boundary, part.getPath()));
+		}
+	}
+
+	private void messageHeadersCompleted(byte[] block, InternetHeaders headers)
+			throws MessagingException {
+		MessageWrapper message = new MessageWrapper(session,
+				new ByteArrayInputStream(block));
+		fileNameParser = new AttachedFileParser(message);
+		listener.envelopeDecoded(message.getEnvelope(), headers);
+
+		String contentType = getContentType(headers);
+		String boundary = getBoundary(contentType);
+		Frame frame = new Frame(boundary, "");
+		frames.add(frame);
+		if (boundary == null) {
+			startChild(frame, createPart("1", headers));
+		}
+	}
+
+	private void boundaryLine(int length) throws MessagingException {
+		for (int i = frames.size() - 1; i >= 0; i--) {
+			Frame frame = frames.get(i);
+			if (frame.boundary == null) {
+				continue;
+			}
+			Boolean closing = frame.match(line, length);
+			if (closing == null) {
+				continue;
+			}
+
+			// the line break before the boundary belongs to it
+			long end = lineStart - previousBreak;
+			// an inner multipart which is not closed ends here
+			for (int j = frames.size() - 1; j > i; j--) {
+				endChild(frames.remove(j), end);
+			}
+			endChild(frame, end);
+			if (closing) {
+				// the epilogue is skipped
+				frame.boundary = null;
+			} else {
+				frame.count++;
+				headerPath = frame.path.isEmpty() ? String.valueOf(frame.count)
+						: frame.path + "." + frame.count;
+				mode = Mode.HEADER;
+			}
+			return;
+		}
+	}
+
+	private void startChild(Frame frame, MessagePart part)
+			throws MessagingException {
+		frame.child = part;
+		frame.childStart = offset;
+		listener.partStarted(part);
+		if (part.isAttachment()) {
+			listener.attachmentFound(part);
+		}
+	}
+
+	private void endChild(Frame frame, long end) throws MessagingException {
+		if (frame.child == null) {
+			return;
+		}
+		MessagePart child = frame.child;
+		frame.child = null;
+		listener.partEnded(child, Math.max(end - frame.childStart, 0));
+	}
+
+	private MessagePart createPart(String path, InternetHeaders headers)
+			throws MessagingException {
+		String contentType = getContentType(headers);
+		String disposition = null;
+		String value = headers.getHeader("Content-Disposition", null);
+		if (value != null) {
+			try {
+				disposition = new ContentDisposition(value).getDisposition()
+						.toLowerCase(Locale.ENGLISH);
+			} catch (ParseException e) {
+				// not disposed
+			}
+		}
+
+		String fileName = null;
+		if (!contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/")) {
+			String decoded = fileNameParser.decodeFileName(new MimeBodyPart(
+					headers, new byte[0]));
+			if (decoded != null && !decoded.isEmpty()) {
+				fileName = fileNameParser.repairFileName(decoded);
+			}
+		}
+		return new MessagePart(path, contentType, disposition, fileName,
+				headers);
+	}
+
+	private static String getContentType(InternetHeaders headers) {
+		String contentType = headers.getHeader("Content-Type", null);
+		return (contentType == null) ? DEFAULT_CONTENT_TYPE : contentType;
+	}
+
+	/**
+	 * return the boundary if "contentType" is multipart, otherwise null.
+	 */
+	@Nullable
+	private static String getBoundary(String contentType) {
+		try {
+			ContentType type = new ContentType(contentType);
+			if (!type.getPrimaryType().equalsIgnoreCase("multipart")) {
+				return null;
+			}
+			String boundary = type.getParameter("boundary");
+			return (boundary == null || boundary.isEmpty()) ? null : boundary;
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * an open multipart, or the message.
+	 */
+	private static final class Frame {
+		// "--" and the boundary. null means the message which is not
+		// multipart or a closed multipart.
+		private byte[] boundary;
+		private final String path;
+		private int count = 0;
+		// the part which is received now
+		private MessagePart child = null;
+		private long childStart = 0;
+
+		Frame(@Nullable String boundary, String path) {
+			this.boundary = (boundary == null) ? null : ("--" + boundary)
+					.getBytes(Charsets.US_ASCII);
+			this.path = path;
+		}
+
+		/**
+		 * return true if "line" is the closing boundary, false if it's a
+		 * boundary, or null if it's not.
+		 */
+		@Nullable
+		Boolean match(byte[] line, int length) {
+			if (length < boundary.length) {
+				return null;
+			}
+			for (int i = 0; i < boundary.length; i++) {
+				if (line[i] != boundary[i]) {
+					return null;
+				}
+			}
+			int end = length;
+			while (end > boundary.length
+					&& (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+				end--;
+			}
+			if (end == boundary.length) {
+				return false;
+			}
+			if (end == boundary.length + 2 && line[end - 2] == '-'
+					&& line[end - 1] == '-') {
+				return true;
+			}
+			return null;
+		}
+	}
+}
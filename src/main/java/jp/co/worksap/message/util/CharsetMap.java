@@ -1,21 +1,78 @@
 package jp.co.worksap.message.util;
 
-import java.util.Map.Entry;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.mail.internet.MimePart;
 
+/**
+ * the "mail.mime.contenttypehandler" of JavaMail. it is called for every
+ * Content-Type lookup of every part, so it scans the value once and returns
+ * the same instance if no charset is rewritten.
+ */
 public class CharsetMap {
+	private static final String CHARSET_PARAMETER = "charset=";
+
 	public static String cleanContentType(MimePart mp, String contentType) {
-		String result = contentType;
-		for (Entry<String, String> entry : CharsetUtility.getCharsetMap().entrySet()) {
-			String template1 = "charset=" + entry.getKey();
-			String template2 = "charset=\"" + entry.getKey();
-			if (result.toLowerCase().contains(template1)) {
-				result = result.replaceAll("(?i)" + template1, "charset=" + entry.getValue());
-			} else if (result.toLowerCase().contains(template2)) {
-				result = result.replaceAll("(?i)" + template2, "charset=\"" + entry.getValue());
+		if (contentType == null) {
+			return null;
+		}
+		Map<String, String> charsetMap = CharsetUtility.getCharsetMap();
+		int length = contentType.length();
+		StringBuilder result = null;
+		// the end of the part which is already copied to "result"
+		int copied = 0;
+		int index = indexOfCharset(contentType, 0);
+		while (index >= 0) {
+			int valueStart = index + CHARSET_PARAMETER.length();
+			if (valueStart < length && contentType.charAt(valueStart) == '"') {
+				valueStart++;
+			}
+			int valueEnd = valueStart;
+			while (valueEnd < length && !isValueEnd(contentType.charAt(valueEnd))) {
+				valueEnd++;
+			}
+
+			String mapping = null;
+			if (valueEnd > valueStart) {
+				mapping = charsetMap.get(contentType.substring(valueStart,
+						valueEnd).toLowerCase(Locale.ENGLISH));
+			}
+			if (mapping != null) {
+				if (result == null) {
+					result = new StringBuilder(length + 16);
+				}
+				result.append(contentType, copied, valueStart).append(mapping);
+				copied = valueEnd;
+			}
+			index = indexOfCharset(contentType, valueEnd);
+		}
+
+		if (result == null) {
+			return contentType;
+		}
+		return result.append(contentType, copied, length).toString();
+	}
+
+	/**
+	 * return the index of "charset=" from "fromIndex" ignoring the case, or -1
+	 * if it's not found.
+	 */
+	private static int indexOfCharset(String contentType, int fromIndex) {
+		int last = contentType.length() - CHARSET_PARAMETER.length();
+		for (int i = fromIndex; i <= last; i++) {
+			char c = contentType.charAt(i);
+			if ((c == 'c' || c == 'C')
+					&& contentType.regionMatches(true, i, CHARSET_PARAMETER, 0,
+							CHARSET_PARAMETER.length())) {
+				return i;
 			}
 		}
-		return result;
+		return -1;
+	}
+
+	private static boolean isValueEnd(char c) {
+		return c == ';' || c == '"' || c == ' ' || c == '\t' || c == '\r'
+				|| c == '\n';
 	}
 }
@@ -0,0 +1,306 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * resolves a charset name in a header fragment like "text/plain;
+ * charset=Shift_JIS" or "=?ISO-2022-JP?B?" to a Charset in one pass. the
+ * aliases are matched case-insensitively anywhere in the text, and when
+ * several aliases are found, the one registered first wins like
+ * CharsetUtility.getValidCharset() did with Encoding.VALID_CHARSETS.
+ *
+ * the Charset objects are looked up once when the aliases are registered, so
+ * the decoders don't go through Charset.forName() for every header and part.
+ */
+public final class CharsetRegistry {
+
+	// the aliases are ASCII, other chars go back to the root
+	private static final int ALPHABET = 128;
+
+	private static final int NOT_FOUND = Integer.MAX_VALUE;
+
+	// charsets our customers send in addition to Encoding.VALID_CHARSETS
+	private static final String[][] ADDITIONAL_CHARSETS = {
+			{ "euc-jp", "EUC-JP" }, { "euc-kr", "x-windows-949" },
+			{ "ks_c_5601-1987", "x-windows-949" }, { "big5", "Big5-HKSCS" } };
+
+	private static final CharsetRegistry DEFAULT = createDefault();
+
+	private final List<RegisteredCharset> charsets = new ArrayList<RegisteredCharset>();
+
+	// rebuilt when an alias is registered, and never modified after that
+	private volatile Matcher matcher = new Matcher(
+			new ArrayList<RegisteredCharset>());
+
+	private final ConcurrentMap<String, Charset> cache = new ConcurrentHashMap<String, Charset>();
+
+	/**
+	 * return the registry used by CharsetUtility and the decoders. the
+	 * charsets registered to it are used by every MessageWrapper.
+	 */
+	@Nonnull
+	public static CharsetRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * register "alias" which is decoded with the Java charset "charsetName".
+	 * an alias registered earlier has the priority when both are found.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if "charsetName" is not supported in this JVM.
+	 */
+	public synchronized void register(@Nonnull String alias,
+			@Nonnull String charsetName) {
+		checkNotNull(alias);
+		checkNotNull(charsetName);
+		String lowerCase = alias.toLowerCase(Locale.ENGLISH);
+		checkArgument(!lowerCase.isEmpty(), "alias is empty");
+		for (int i = 0; i < lowerCase.length(); i++) {
+			checkArgument(lowerCase.charAt(i) < ALPHABET,
+					"alias is not ASCII: %s", alias);
+		}
+		for (RegisteredCharset registered : charsets) {
+			if (registered.alias.equals(lowerCase)) {
+				// the first one has the priority anyway
+				return;
+			}
+		}
+
+		Charset charset = Charset.forName(charsetName);
+		charsets.add(new RegisteredCharset(lowerCase, charsetName, charset));
+		cache.putIfAbsent(charsetName.toLowerCase(Locale.ENGLISH), charset);
+		matcher = new Matcher(charsets);
+	}
+
+	/**
+	 * return the Charset of the first registered alias which appears in
+	 * "text", or null if there is no alias in it.
+	 */
+	@Nullable
+	public Charset resolve(@Nonnull CharSequence text) {
+		return resolve(text, 0, text.length());
+	}
+
+	/**
+	 * same as resolve(CharSequence) for text.subSequence(start, end), without
+	 * creating the sub sequence.
+	 */
+	@Nullable
+	public Charset resolve(@Nonnull CharSequence text, int start, int end) {
+		RegisteredCharset found = matcher.find(text, start, end);
+		return (found == null) ? null : found.charset;
+	}
+
+	/**
+	 * return the name of the Java charset of the first registered alias which
+	 * appears in "text", like CharsetUtility.getMappingCharSet(). it returns
+	 * "" if there is no alias in it.
+	 */
+	@Nonnull
+	public String resolveName(@Nonnull CharSequence text) {
+		RegisteredCharset found = matcher.find(text, 0, text.length());
+		return (found == null) ? "" : found.name;
+	}
+
+	/**
+	 * return the first registered alias which appears in "text" in lower
+	 * case, or "" if there is no alias in it.
+	 */
+	@Nonnull
+	public String findAlias(@Nonnull CharSequence text) {
+		RegisteredCharset found = matcher.find(text, 0, text.length());
+		return (found == null) ? "" : found.alias;
+	}
+
+	/**
+	 * return the Charset of the Java charset "name". unlike Charset.forName(),
+	 * the result is kept for every name. it's kept in lower case, so the
+	 * spellings in the headers don't add the entries. the aliases are not
+	 * mapped here, use resolve() for them.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the charset is not supported or the name is illegal.
+	 */
+	@Nonnull
+	public Charset forName(@Nonnull String name) {
+		String lowerCase = name.toLowerCase(Locale.ENGLISH);
+		Charset charset = cache.get(lowerCase);
+		if (charset == null) {
+			charset = Charset.forName(name);
+			cache.putIfAbsent(lowerCase, charset);
+		}
+		return charset;
+	}
+
+	/**
+	 * return true if forName() returns a Charset for "name".
+	 */
+	public boolean isSupported(@Nonnull String name) {
+		try {
+			forName(name);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static CharsetRegistry createDefault() {
+		CharsetRegistry registry = new CharsetRegistry();
+		for (String alias : Encoding.VALID_CHARSETS) {
+			String mapping = CharsetUtility.getCharsetMap().get(alias);
+			registerIfSupported(registry, alias, (mapping == null) ? alias
+					: mapping);
+		}
+		for (Entry<String, String> entry : CharsetUtility.getCharsetMap()
+				.entrySet()) {
+			registerIfSupported(registry, entry.getKey(), entry.getValue());
+		}
+		for (String[] charset : ADDITIONAL_CHARSETS) {
+			registerIfSupported(registry, charset[0], charset[1]);
+		}
+		return registry;
+	}
+
+	private static void registerIfSupported(CharsetRegistry registry,
+			String alias, String charsetName) {
+		try {
+			registry.register(alias, charsetName);
+		} catch (IllegalArgumentException e) {
+			// not supported in this JVM, the alias is not resolved.
+		}
+	}
+
+	private static final class RegisteredCharset {
+		private final String alias;
+		private final String name;
+		private final Charset charset;
+
+		private RegisteredCharset(String alias, String name, Charset charset) {
+			this.alias = alias;
+			this.name = name;
+			this.charset = charset;
+		}
+	}
+
+	/**
+	 * Aho-Corasick automaton over the aliases. every state has a transition
+	 * for every char of the alphabet, and knows the alias of the highest
+	 * priority which ends at it, including the ones found by the failure
+	 * links.
+	 */
+	private static final class Matcher {
+		private final RegisteredCharset[] charsets;
+		// transitions[state * ALPHABET + c]
+		private final int[] transitions;
+		// index in charsets, or NOT_FOUND
+		private final int[] outputs;
+
+		private Matcher(List<RegisteredCharset> registered) {
+			charsets = registered.toArray(new RegisteredCharset[registered
+					.size()]);
+
+			int maxStates = 1;
+			for (RegisteredCharset charset : charsets) {
+				maxStates += charset.alias.length();
+			}
+			int[] gotos = new int[maxStates * ALPHABET];
+			Arrays.fill(gotos, -1);
+			int[] found = new int[maxStates];
+			Arrays.fill(found, NOT_FOUND);
+
+			// trie
+			int states = 1;
+			for (int i = 0; i < charsets.length; i++) {
+				String alias = charsets[i].alias;
+				int state = 0;
+				for (int j = 0; j < alias.length(); j++) {
+					int index = state * ALPHABET + alias.charAt(j);
+					if (gotos[index] < 0) {
+						gotos[index] = states++;
+					}
+					state = gotos[index];
+				}
+				found[state] = Math.min(found[state], i);
+			}
+
+			// failure links by breadth first search, and the missing
+			// transitions are replaced with the ones of the failure state.
+			int[] failures = new int[states];
+			Queue<Integer> queue = new LinkedList<Integer>();
+			for (int c = 0; c < ALPHABET; c++) {
+				int next = gotos[c];
+				if (next < 0) {
+					gotos[c] = 0;
+				} else {
+					failures[next] = 0;
+					queue.add(next);
+				}
+			}
+			while (!queue.isEmpty()) {
+				int state = queue.remove();
+				found[state] = Math.min(found[state], found[failures[state]]);
+				for (int c = 0; c < ALPHABET; c++) {
+					int index = state * ALPHABET + c;
+					int next = gotos[index];
+					int fallback = gotos[failures[state] * ALPHABET + c];
+					if (next < 0) {
+						gotos[index] = fallback;
+					} else {
+						failures[next] = fallback;
+						queue.add(next);
+					}
+				}
+			}
+
+			transitions = Arrays.copyOf(gotos, states * ALPHABET);
+			outputs = Arrays.copyOf(found, states);
+		}
+
+		RegisteredCharset find(CharSequence text, int start, int end) {
+			int state = 0;
+			int best = NOT_FOUND;
+			for (int i = start; i < end; i++) {
+				char c = text.charAt(i);
+				if (c >= 'A' && c <= 'Z') {
+					c += 'a' - 'A';
+				} else if (c >= ALPHABET) {
+					state = 0;
+					continue;
+				}
+				state = transitions[state * ALPHABET + c];
+				if (outputs[state] < best) {
+					best = outputs[state];
+					if (best == 0) {
+						break;
+					}
+				}
+			}
+			return (best == NOT_FOUND) ? null : charsets[best];
+		}
+	}
+}
@@ -26,25 +26,17 @@ public class CharsetUtility {
 		put("iso-8859-1", "Windows-1252");
 	}};
 
+	/**
+	 * return the name of the Java charset of the charset in "text", or "" if
+	 * it has no supported charset. it's resolved by
+	 * CharsetRegistry.getDefault(), so the registered aliases are mapped too.
+	 */
 	public static String getMappingCharSet(String text) {
-		String source = getValidCharset(text);
-		if (source.isEmpty()) {
-			return "";
-		}
-		if (CHARSET_MAP.containsKey(source)) {
-			return CHARSET_MAP.get(source);
-		} else {
-			return source;
-		}
+		return CharsetRegistry.getDefault().resolveName(text);
 	}
 	
 	public static String getValidCharset(String text) {
-		for (String charSet : Encoding.VALID_CHARSETS) {
-			if (text.contains(charSet)) {
-				return charSet;
-			}
-		}
-		return "";
+		return CharsetRegistry.getDefault().findAlias(text);
 	}
 	
 	public static boolean needsMapping(String text) {
@@ -0,0 +1,164 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * CharsetDecoders and scratch buffers kept for the current thread, so the
+ * decoders don't allocate them for every header, part and guess.
+ *
+ * an object is removed from the pool while it's borrowed, so a nested
+ * decoding in the same thread gets another one. an object which is not
+ * released is just left to the garbage collector.
+ */
+public final class DecoderPool {
+
+	private static final ThreadLocal<DecoderPool> POOLS = new ThreadLocal<DecoderPool>() {
+		@Override
+		protected DecoderPool initialValue() {
+			return new DecoderPool();
+		}
+	};
+
+	// larger buffers are not kept not to hold the memory of a huge message
+	private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+	// buffers of each type, enough for the nested readers of a decoding
+	private static final int MAX_BUFFERS = 4;
+
+	// decoders of each error action
+	private static final int MAX_DECODERS = 16;
+
+	private final Map<Charset, CharsetDecoder> replacingDecoders = new HashMap<Charset, CharsetDecoder>();
+
+	private final Map<Charset, CharsetDecoder> reportingDecoders = new HashMap<Charset, CharsetDecoder>();
+
+	private final List<byte[]> byteArrays = new ArrayList<byte[]>(MAX_BUFFERS);
+
+	private final List<char[]> charArrays = new ArrayList<char[]>(MAX_BUFFERS);
+
+	private DecoderPool() {
+	}
+
+	/**
+	 * return the pool of the current thread. the pool must not be passed to
+	 * other threads.
+	 */
+	@Nonnull
+	public static DecoderPool get() {
+		return POOLS.get();
+	}
+
+	/**
+	 * return a reset decoder of "charset". it replaces malformed and
+	 * unmappable input like InputStreamReader if "replace" is true, otherwise
+	 * it reports them.
+	 */
+	@Nonnull
+	public CharsetDecoder borrowDecoder(@Nonnull Charset charset,
+			boolean replace) {
+		checkNotNull(charset);
+		CharsetDecoder decoder = getDecoders(replace).remove(charset);
+		if (decoder != null) {
+			return decoder.reset();
+		}
+		CodingErrorAction action = replace ? CodingErrorAction.REPLACE
+				: CodingErrorAction.REPORT;
+		return charset.newDecoder().onMalformedInput(action)
+				.onUnmappableCharacter(action);
+	}
+
+	public void releaseDecoder(@Nonnull CharsetDecoder decoder) {
+		Map<Charset, CharsetDecoder> decoders = getDecoders(decoder
+				.malformedInputAction() == CodingErrorAction.REPLACE);
+		if (decoders.size() < MAX_DECODERS
+				&& !decoders.containsKey(decoder.charset())) {
+			decoders.put(decoder.charset(), decoder);
+		}
+	}
+
+	/**
+	 * return a byte array whose length is "minSize" or more. the contents are
+	 * not cleared.
+	 */
+	@Nonnull
+	public byte[] borrowBytes(int minSize) {
+		Iterator<byte[]> it = byteArrays.iterator();
+		while (it.hasNext()) {
+			byte[] bytes = it.next();
+			if (bytes.length >= minSize) {
+				it.remove();
+				return bytes;
+			}
+		}
+		return new byte[minSize];
+	}
+
+	public void releaseBytes(@Nonnull byte[] bytes) {
+		if (bytes.length > MAX_BUFFER_SIZE
+				|| byteArrays.size() >= MAX_BUFFERS) {
+			return;
+		}
+		for (byte[] pooled : byteArrays) {
+			if (pooled == bytes) {
+				// released twice
+				return;
+			}
+		}
+		byteArrays.add(bytes);
+	}
+
+	/**
+	 * return a char array whose length is "minSize" or more. the contents are
+	 * not cleared.
+	 */
+	@Nonnull
+	public char[] borrowChars(int minSize) {
+		Iterator<char[]> it = charArrays.iterator();
+		while (it.hasNext()) {
+			char[] chars = it.next();
+			if (chars.length >= minSize) {
+				it.remove();
+				return chars;
+			}
+		}
+		return new char[minSize];
+	}
+
+	public void releaseChars(@Nonnull char[] chars) {
+		if (chars.length > MAX_BUFFER_SIZE
+				|| charArrays.size() >= MAX_BUFFERS) {
+			return;
+		}
+		for (char[] pooled : charArrays) {
+			if (pooled == chars) {
+				// released twice
+				return;
+			}
+		}
+		charArrays.add(chars);
+	}
+
+	private Map<Charset, CharsetDecoder> getDecoders(boolean replace) {
+		return replace ? replacingDecoders : reportingDecoders;
+	}
+}
@@ -0,0 +1,140 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.Nonnull;
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * InputStream over a (memory-mapped) ByteBuffer. MimeMessage and
+ * MimeBodyPart recognize SharedInputStream and keep slices of it by
+ * newStream() instead of copying the content into a byte array.
+ */
+public class MappedSharedInputStream extends InputStream implements
+		SharedInputStream {
+
+	@Nonnull
+	private final ByteBuffer buffer;
+
+	private int mark = 0;
+
+	/**
+	 * @param buffer
+	 *            is read from its position to its limit. the buffer is not
+	 *            modified.
+	 */
+	public MappedSharedInputStream(@Nonnull ByteBuffer buffer) {
+		this.buffer = checkNotNull(buffer).slice();
+	}
+
+	public static MappedSharedInputStream map(@Nonnull File file)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(checkNotNull(file), "r");
+		try {
+			// the mapping stays valid after the file is closed
+			return map(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static MappedSharedInputStream map(@Nonnull FileChannel channel)
+			throws IOException {
+		long size = checkNotNull(channel).size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Too large to map: " + size + " bytes");
+		}
+		return new MappedSharedInputStream(channel.map(
+				FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipped = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+		mark = buffer.position();
+	}
+
+	@Override
+	public void reset() {
+		buffer.position(mark);
+	}
+
+	public long getPosition() {
+		return buffer.position();
+	}
+
+	/**
+	 * return a stream of the bytes between "start" and "end". both are
+	 * relative to the beginning of this stream and -1 as "end" means the end
+	 * of this stream. the returned stream shares the mapping.
+	 */
+	public InputStream newStream(long start, long end) {
+		if (start < 0 || start > buffer.limit()) {
+			throw new IllegalArgumentException("start: " + start);
+		}
+		long limit = (end == -1) ? buffer.limit() : end;
+		if (limit < start || limit > buffer.limit()) {
+			throw new IllegalArgumentException("end: " + end);
+		}
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.limit((int) limit);
+		duplicate.position((int) start);
+		return new MappedSharedInputStream(duplicate);
+	}
+}
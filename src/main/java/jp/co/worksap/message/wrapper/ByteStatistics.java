@@ -0,0 +1,173 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import java.util.Locale;
+
+/**
+ * cheap byte statistics to score the charset candidates. they are collected
+ * while CharsetGuesser reads the input, so the input is not read twice.
+ */
+final class ByteStatistics {
+	private static final byte ESC = 0x1b;
+
+	// a score for a charset which can't be told from the others by the bytes
+	private static final double NEUTRAL = 0.5;
+
+	// bytes in 0x80-0xff
+	private long highBytes = 0;
+	// ESC $ or ESC ( of ISO-2022-JP
+	private long escapeSequences = 0;
+	// high bytes which are in valid UTF-8 multi-byte sequences
+	private long utf8Bytes = 0;
+	// high bytes which are in Shift_JIS double-byte characters or half-width
+	// katakana
+	private long sjisBytes = 0;
+	// high bytes which are in EUC double-byte characters
+	private long eucBytes = 0;
+
+	private int previous = -1;
+	// continuation bytes which the current UTF-8 sequence still needs
+	private int utf8Remaining = 0;
+	private int utf8Length = 0;
+	private boolean sjisLead = false;
+	private boolean eucLead = false;
+
+	void update(byte[] buffer, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			update(buffer[i] & 0xff);
+		}
+	}
+
+	/**
+	 * forget the incomplete sequence when the input jumps.
+	 */
+	void restart() {
+		previous = -1;
+		utf8Remaining = 0;
+		sjisLead = false;
+		eucLead = false;
+	}
+
+	long getHighBytes() {
+		return highBytes;
+	}
+
+	/**
+	 * return a score between 0 and 1 of the charset, from how much the bytes
+	 * look like the charset.
+	 */
+	double score(String charset) {
+		String name = charset.toLowerCase(Locale.ENGLISH);
+		if (name.contains("2022")) {
+			if (highBytes > 0) {
+				// ISO-2022-JP is 7 bits
+				return 0.0;
+			}
+			return (escapeSequences > 0) ? 0.95 : NEUTRAL;
+		}
+		if (highBytes == 0) {
+			return NEUTRAL;
+		}
+		if (name.equals("utf-8") || name.equals("utf8")) {
+			return 0.6 + 0.4 * ratio(utf8Bytes);
+		}
+		if (name.contains("shift_jis") || name.contains("932")
+				|| name.contains("31j") || name.contains("sjis")) {
+			return 0.4 + 0.5 * ratio(sjisBytes);
+		}
+		if (name.contains("gb18030")) {
+			// it can decode almost everything, so it's after the others.
+			return 0.3 + 0.5 * ratio(eucBytes);
+		}
+		if (name.startsWith("gb") || name.startsWith("euc")
+				|| name.contains("949") || name.contains("5601")
+				|| name.contains("big5")) {
+			return 0.4 + 0.5 * ratio(eucBytes);
+		}
+		if (name.contains("1252") || name.contains("8859")) {
+			// single byte charsets decode everything
+			return 0.3;
+		}
+		return 0.4;
+	}
+
+	private double ratio(long count) {
+		return Math.min(1.0, (double) count / highBytes);
+	}
+
+	private void update(int b) {
+		if (previous == ESC && (b == '$' || b == '(')) {
+			escapeSequences++;
+		}
+		previous = b;
+		if (b >= 0x80) {
+			highBytes++;
+		}
+		updateUtf8(b);
+		updateSjis(b);
+		updateEuc(b);
+	}
+
+	private void updateUtf8(int b) {
+		if (utf8Remaining > 0) {
+			if ((b & 0xc0) == 0x80) {
+				utf8Remaining--;
+				utf8Length++;
+				if (utf8Remaining == 0) {
+					utf8Bytes += utf8Length;
+				}
+				return;
+			}
+			// broken sequence
+			utf8Remaining = 0;
+		}
+		if (b >= 0xc2 && b <= 0xdf) {
+			utf8Remaining = 1;
+		} else if (b >= 0xe0 && b <= 0xef) {
+			utf8Remaining = 2;
+		} else if (b >= 0xf0 && b <= 0xf4) {
+			utf8Remaining = 3;
+		} else {
+			return;
+		}
+		utf8Length = 1;
+	}
+
+	private void updateSjis(int b) {
+		if (sjisLead) {
+			sjisLead = false;
+			if ((b >= 0x40 && b <= 0x7e) || (b >= 0x80 && b <= 0xfc)) {
+				// the lead byte and the trail byte if it's high
+				sjisBytes += (b >= 0x80) ? 2 : 1;
+				return;
+			}
+		}
+		if ((b >= 0x81 && b <= 0x9f) || (b >= 0xe0 && b <= 0xfc)) {
+			sjisLead = true;
+		} else if (b >= 0xa1 && b <= 0xdf) {
+			// half-width katakana
+			sjisBytes++;
+		}
+	}
+
+	private void updateEuc(int b) {
+		boolean inRange = (b >= 0xa1 && b <= 0xfe);
+		if (eucLead) {
+			eucLead = false;
+			if (inRange) {
+				eucBytes += 2;
+				return;
+			}
+		}
+		eucLead = inRange;
+	}
+}
@@ -0,0 +1,45 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nonnull;
+
+/**
+ * a charset which could decode the input and how much the input looks like
+ * it. the confidence is between 0 and 1.
+ */
+public final class CharsetGuess {
+
+	@Nonnull
+	private final String charset;
+
+	private final double confidence;
+
+	public CharsetGuess(@Nonnull String charset, double confidence) {
+		this.charset = checkNotNull(charset);
+		this.confidence = confidence;
+	}
+
+	@Nonnull
+	public String getCharset() {
+		return charset;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	@Override
+	public String toString() {
+		return charset + "(" + confidence + ")";
+	}
+}
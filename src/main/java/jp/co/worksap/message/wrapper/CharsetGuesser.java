@@ -9,48 +9,193 @@
 
 package jp.co.worksap.message.wrapper;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Nullable;
 import javax.mail.Header;
 
+import jp.co.worksap.message.util.CharsetRegistry;
 import jp.co.worksap.message.util.CharsetUtility;
+import jp.co.worksap.message.util.DecoderPool;
 import jp.co.worksap.message.util.Encoding;
 
+import com.google.common.io.ByteStreams;
+
+/**
+ * guesses the charset of the bytes from the charsets in the headers. it's
+ * immutable, so an instance can be shared by threads.
+ */
 public class CharsetGuesser {
 	
 	private static final int SIZE = 1024;
 
+	// bytes of an incomplete character which a decoder may leave at the end
+	// of a chunk. they are decoded with the next chunk.
+	private static final int CARRY = 16;
+
+	// high bytes which are needed to decide the order before the end
+	private static final int MIN_EVIDENCE = 4096;
+
+	// the difference of the confidence to decide the order before the end
+	private static final double CLEAR_MARGIN = 0.4;
+
+	private static final Comparator<CharsetGuess> BY_CONFIDENCE = new Comparator<CharsetGuess>() {
+		public int compare(CharsetGuess o1, CharsetGuess o2) {
+			return Double.compare(o2.getConfidence(), o1.getConfidence());
+		}
+	};
+
+	/**
+	 * sample size which means the whole input is decoded.
+	 */
+	public static final int UNLIMITED = -1;
+
+	private final int sampleHeadSize;
+
+	private final int sampleTailSize;
+
+	public CharsetGuesser() {
+		this(UNLIMITED, 0);
+	}
+
+	/**
+	 * the guesser decodes only the first "sampleHeadSize" bytes and the last
+	 * "sampleTailSize" bytes of the input, and returns the best candidate
+	 * which could decode them. the tail is sampled only when the size of the
+	 * rest of the input is known by InputStream.available().
+	 * 
+	 * @param sampleHeadSize
+	 *            is UNLIMITED or the number of the bytes to decode from the
+	 *            beginning.
+	 * @param sampleTailSize
+	 *            is the number of the bytes to decode at the end. it's
+	 *            ignored when "sampleHeadSize" is UNLIMITED.
+	 */
+	public CharsetGuesser(int sampleHeadSize, int sampleTailSize) {
+		checkArgument(sampleHeadSize >= 0 || sampleHeadSize == UNLIMITED,
+				"sampleHeadSize: %s", sampleHeadSize);
+		checkArgument(sampleTailSize >= 0, "sampleTailSize: %s",
+				sampleTailSize);
+		this.sampleHeadSize = sampleHeadSize;
+		this.sampleTailSize = sampleTailSize;
+	}
+
+	public int getSampleHeadSize() {
+		return sampleHeadSize;
+	}
+
+	public int getSampleTailSize() {
+		return sampleTailSize;
+	}
+
 	public String guessCharset(Enumeration<?> e, InputStream input) {
-		Set<String> charSets = guessCharset(e);
-		for (String charset: charSets) {
-			try {
-				if (!charset.equals(Encoding.GB18030) && canDecode(input, Charset.forName(charset))) {
-					return charset;
+		return guessCharset(findCandidates(e), input);
+	}
+
+	/**
+	 * @param candidates
+	 *            are found by findCandidates() from the headers.
+	 */
+	public String guessCharset(Collection<String> candidates,
+			InputStream input) {
+		List<CharsetGuess> guesses = rankCharsets(candidates, input);
+		if (guesses.isEmpty()) {
+			return "";
+		}
+		return guesses.get(0).getCharset();
+	}
+
+	/**
+	 * return the charsets which are found in the headers and can decode
+	 * "input", from the most likely one. the confidence comes from the byte
+	 * statistics of the input, and the order of the headers decides the order
+	 * of the same confidence.
+	 */
+	public List<CharsetGuess> rankCharsets(Enumeration<?> e, InputStream input) {
+		return rankCharsets(findCandidates(e), input);
+	}
+
+	/**
+	 * @param charSets
+	 *            are found by findCandidates() from the headers.
+	 */
+	public List<CharsetGuess> rankCharsets(Collection<String> charSets,
+			InputStream input) {
+		DecoderPool pool = DecoderPool.get();
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		// the decoders are released even if the candidate is removed
+		List<Candidate> borrowed = new ArrayList<Candidate>();
+		String lastResort = null;
+		ByteStatistics statistics = new ByteStatistics();
+		try {
+			for (String charset : charSets) {
+				if (charset.equalsIgnoreCase(Encoding.GB18030)) {
+					lastResort = charset;
+				}
+				try {
+					borrowed.add(new Candidate(charset, pool.borrowDecoder(
+							CharsetRegistry.getDefault().forName(charset),
+							false)));
+				} catch (IllegalArgumentException ex) {
+					// unsupported in this JVM
+					continue;
 				}
-			} catch (IOException ex) {
-				continue;
+			}
+			candidates.addAll(borrowed);
+
+			if (!candidates.isEmpty()) {
+				try {
+					decode(input, candidates, statistics, pool);
+				} catch (IOException ex) {
+					// no candidate could be verified
+					candidates.clear();
+				}
+			}
+		} finally {
+			for (Candidate candidate : borrowed) {
+				pool.releaseDecoder(candidate.decoder);
 			}
 		}
-		if (charSets.contains(Encoding.GB18030)) {
-			return Encoding.GB18030;
+
+		List<CharsetGuess> guesses = new ArrayList<CharsetGuess>();
+		for (Candidate candidate : candidates) {
+			guesses.add(new CharsetGuess(candidate.charset, statistics
+					.score(candidate.charset)));
+		}
+		// stable, so the order of the headers is kept in the same confidence
+		Collections.sort(guesses, BY_CONFIDENCE);
+
+		if (guesses.isEmpty() && lastResort != null) {
+			// GB18030 can decode almost everything, so it's the last resort.
+			guesses.add(new CharsetGuess(lastResort, 0.0));
 		}
-		return "";
+		return guesses;
 	}
 	
 	
-	private Set<String> guessCharset(Enumeration<?> e) {
-		Set<String> charSets = new HashSet<String>();
+	/**
+	 * return the charsets which appear in the headers, in the order of the
+	 * headers. the result can be reused for the inputs of the same message.
+	 */
+	public Set<String> findCandidates(Enumeration<?> e) {
+		// keep the order of the headers to get the same result every time
+		Set<String> charSets = new LinkedHashSet<String>();
 		while (e.hasMoreElements()) {
 			Object o = e.nextElement();
 			if (o instanceof Header) {
@@ -66,43 +211,194 @@ public class CharsetGuesser {
 
 		return charSets;
 	}
-	
-	private boolean canDecode(InputStream input, Charset charset)
-			throws IOException {
-		ReadableByteChannel channel = Channels.newChannel(input);
-		CharsetDecoder decoder = charset.newDecoder();
 
-		ByteBuffer byteBuffer = ByteBuffer.allocate(SIZE * 2);
-		CharBuffer charBuffer = CharBuffer.allocate(SIZE);
+	/**
+	 * read "input" once and feed every candidate with the same bytes. a
+	 * candidate is removed from "candidates" when it finds a malformed or
+	 * unmappable sequence.
+	 */
+	private void decode(InputStream input, List<Candidate> candidates,
+			ByteStatistics statistics, DecoderPool pool) throws IOException {
+		// buffer[0, carry) keeps the end of the previous chunk
+		byte[] buffer = pool.borrowBytes(CARRY + SIZE * 2);
+		char[] chars = pool.borrowChars(SIZE);
+		try {
+			decode(input, candidates, statistics, ByteBuffer.wrap(buffer),
+					CharBuffer.wrap(chars));
+		} finally {
+			pool.releaseBytes(buffer);
+			pool.releaseChars(chars);
+		}
+	}
 
-		boolean endOfInput = false;
-		while (!endOfInput) {
-			int n = channel.read(byteBuffer);
-			byteBuffer.flip();
+	private void decode(InputStream input, List<Candidate> candidates,
+			ByteStatistics statistics, ByteBuffer byteBuffer,
+			CharBuffer charBuffer) throws IOException {
+		byte[] buffer = byteBuffer.array();
+		int carry = 0;
 
+		boolean unlimited = (sampleHeadSize == UNLIMITED);
+		long headLeft = unlimited ? Long.MAX_VALUE : sampleHeadSize;
+		boolean collecting = true;
+		boolean endOfInput = false;
+		while (!endOfInput && !candidates.isEmpty() && headLeft > 0) {
+			int n = input.read(buffer, carry,
+					(int) Math.min(buffer.length - carry, headLeft));
 			endOfInput = (n == -1);
-			CoderResult coderResult = decoder.decode(byteBuffer, charBuffer,
-					endOfInput);
-			if (coderResult.isError()) {
-				return false;
+			if (n > 0) {
+				headLeft -= n;
 			}
-			charBuffer.clear();
-			while (coderResult == CoderResult.OVERFLOW) {
-				coderResult = decoder
-						.decode(byteBuffer, charBuffer, endOfInput);
-				charBuffer.clear();
+			carry = feed(byteBuffer, carry, n, endOfInput, candidates,
+					charBuffer, collecting ? statistics : null);
+			if (collecting && isClearlyAhead(candidates, statistics)) {
+				if (!unlimited) {
+					// the sample is a guess anyway
+					return;
+				}
+				// the whole input is still decoded to verify the candidates,
+				// but the order of them is decided.
+				collecting = false;
 			}
+		}
+		if (endOfInput || candidates.isEmpty() || sampleTailSize == 0) {
+			return;
+		}
 
-			byteBuffer.compact();
+		// the head is used up. decode the tail if its position is known.
+		int remaining = input.available();
+		if (remaining <= 0) {
+			return;
 		}
-		CoderResult coderResult;
-		while ((coderResult = decoder.flush(charBuffer)) == CoderResult.OVERFLOW) {
-			charBuffer.clear();
+		if (remaining > sampleTailSize) {
+			ByteStreams.skipFully(input, remaining - sampleTailSize);
+			// the decoders can restart at the beginning of a line
+			if (!skipLine(input)) {
+				return;
+			}
+			for (Candidate candidate : candidates) {
+				candidate.reset();
+			}
+			statistics.restart();
+			carry = 0;
+		}
+		while (!endOfInput && !candidates.isEmpty()) {
+			int n = input.read(buffer, carry, buffer.length - carry);
+			endOfInput = (n == -1);
+			carry = feed(byteBuffer, carry, n, endOfInput, candidates,
+					charBuffer, statistics);
+			if (isClearlyAhead(candidates, statistics)) {
+				return;
+			}
 		}
-		if (coderResult.isError()) {
+	}
+
+	/**
+	 * return true if the statistics have enough evidence and the best of two
+	 * or more candidates is far ahead of the second one. the statistics of the
+	 * rest can't change the order in practice, but the rest can still break
+	 * the best one.
+	 */
+	private boolean isClearlyAhead(List<Candidate> candidates,
+			ByteStatistics statistics) {
+		if (candidates.size() < 2
+				|| statistics.getHighBytes() < MIN_EVIDENCE) {
 			return false;
 		}
+		double best = 0.0;
+		double second = 0.0;
+		for (Candidate candidate : candidates) {
+			double score = statistics.score(candidate.charset);
+			if (score > best) {
+				second = best;
+				best = score;
+			} else if (score > second) {
+				second = score;
+			}
+		}
+		return best - second >= CLEAR_MARGIN;
+	}
+
+	/**
+	 * feed the candidates with the pending bytes and "n" bytes after
+	 * buffer[carry], and return the new "carry". the statistics are not
+	 * updated if it's null.
+	 */
+	private int feed(ByteBuffer byteBuffer, int carry, int n,
+			boolean endOfInput, List<Candidate> candidates,
+			CharBuffer charBuffer, @Nullable ByteStatistics statistics) {
+		byte[] buffer = byteBuffer.array();
+		int end = carry + Math.max(n, 0);
+		if (statistics != null) {
+			statistics.update(buffer, carry, end - carry);
+		}
+
+		Iterator<Candidate> it = candidates.iterator();
+		while (it.hasNext()) {
+			Candidate candidate = it.next();
+			int start = carry - candidate.pending;
+			byteBuffer.limit(end).position(start);
+			if (!candidate.decode(byteBuffer, charBuffer, endOfInput)) {
+				it.remove();
+			}
+		}
+
+		int keep = Math.min(CARRY, end);
+		System.arraycopy(buffer, end - keep, buffer, 0, keep);
+		return keep;
+	}
+
+	private boolean skipLine(InputStream input) throws IOException {
+		int b;
+		while ((b = input.read()) != -1) {
+			if (b == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final class Candidate {
+		private final String charset;
+		private final CharsetDecoder decoder;
+		// bytes at the end of the last chunk which are not decoded yet
+		private int pending = 0;
+
+		private Candidate(String charset, CharsetDecoder decoder) {
+			this.charset = charset;
+			this.decoder = decoder;
+		}
 
-		return true;
+		private void reset() {
+			decoder.reset();
+			pending = 0;
+		}
+
+		private boolean decode(ByteBuffer in, CharBuffer out,
+				boolean endOfInput) {
+			CoderResult coderResult;
+			do {
+				out.clear();
+				coderResult = decoder.decode(in, out, endOfInput);
+				if (coderResult.isError()) {
+					return false;
+				}
+			} while (coderResult.isOverflow());
+
+			pending = in.remaining();
+			if (pending > CARRY) {
+				return false;
+			}
+
+			if (endOfInput) {
+				do {
+					out.clear();
+					coderResult = decoder.flush(out);
+					if (coderResult.isError()) {
+						return false;
+					}
+				} while (coderResult.isOverflow());
+			}
+			return true;
+		}
 	}
 }
@@ -0,0 +1,92 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.InputSupplier;
+
+/**
+ * MimeMessage which parses only the header block at the construction. The
+ * body is read from the supplier when it is needed at first.
+ */
+class LazyMimeMessage extends MimeMessage {
+
+	@Nullable
+	private InputSupplier<? extends InputStream> body;
+
+	LazyMimeMessage(@Nullable Session session,
+			@Nonnull InputStream headerSource,
+			@Nonnull InputSupplier<? extends InputStream> body)
+			throws MessagingException {
+		super(session);
+		// read until the blank line
+		this.headers = createInternetHeaders(headerSource);
+		this.body = body;
+		this.modified = false;
+		this.saved = true;
+	}
+
+	@Override
+	protected InputStream getContentStream() throws MessagingException {
+		loadBody();
+		return super.getContentStream();
+	}
+
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList)
+			throws IOException, MessagingException {
+		loadBody();
+		super.writeTo(os, ignoreList);
+	}
+
+	@Override
+	public synchronized void setDataHandler(DataHandler dh)
+			throws MessagingException {
+		// the new content replaces the body which is not read yet
+		body = null;
+		super.setDataHandler(dh);
+	}
+
+	private synchronized void loadBody() throws MessagingException {
+		if (body == null) {
+			return;
+		}
+
+		InputStream in = null;
+		try {
+			in = body.getInput();
+			if (in instanceof SharedInputStream) {
+				// keep a slice instead of copying it
+				SharedInputStream sis = (SharedInputStream) in;
+				contentStream = sis.newStream(sis.getPosition(), -1);
+			} else {
+				content = ByteStreams.toByteArray(in);
+				Closeables.closeQuietly(in);
+			}
+			body = null;
+		} catch (IOException e) {
+			Closeables.closeQuietly(in);
+			throw new MessagingException("Failed to read the message body", e);
+		}
+	}
+}
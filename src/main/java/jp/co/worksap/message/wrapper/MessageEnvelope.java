@@ -0,0 +1,126 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * decoded header fields of a message. it is built by
+ * MessageWrapper.getEnvelope() and the repaired values are same as the ones
+ * returned by MessageWrapper.getSubject(), getFrom() and so on.
+ */
+public final class MessageEnvelope {
+
+	@Nonnull
+	private final String subject;
+
+	@Nonnull
+	private final InternetAddress[] from;
+
+	@Nonnull
+	private final InternetAddress[] to;
+
+	@Nonnull
+	private final InternetAddress[] cc;
+
+	@Nonnull
+	private final InternetAddress[] bcc;
+
+	@Nonnull
+	private final Address[] replyTo;
+
+	@Nullable
+	private final Date sentDate;
+
+	@Nullable
+	private final String messageId;
+
+	@Nonnull
+	private final String contentType;
+
+	private final int size;
+
+	MessageEnvelope(@Nonnull String subject, @Nonnull InternetAddress[] from,
+			@Nonnull InternetAddress[] to, @Nonnull InternetAddress[] cc,
+			@Nonnull InternetAddress[] bcc, @Nonnull Address[] replyTo,
+			@Nullable Date sentDate, @Nullable String messageId,
+			@Nonnull String contentType, int size) {
+		this.subject = checkNotNull(subject);
+		this.from = checkNotNull(from).clone();
+		this.to = checkNotNull(to).clone();
+		this.cc = checkNotNull(cc).clone();
+		this.bcc = checkNotNull(bcc).clone();
+		this.replyTo = checkNotNull(replyTo).clone();
+		this.sentDate = (sentDate == null) ? null : new Date(sentDate.getTime());
+		this.messageId = messageId;
+		this.contentType = checkNotNull(contentType);
+		this.size = size;
+	}
+
+	@Nonnull
+	public String getSubject() {
+		return subject;
+	}
+
+	@Nonnull
+	public InternetAddress[] getFrom() {
+		return from.clone();
+	}
+
+	@Nonnull
+	public InternetAddress[] getTo() {
+		return to.clone();
+	}
+
+	@Nonnull
+	public InternetAddress[] getCc() {
+		return cc.clone();
+	}
+
+	@Nonnull
+	public InternetAddress[] getBcc() {
+		return bcc.clone();
+	}
+
+	@Nonnull
+	public Address[] getReplyTo() {
+		return replyTo.clone();
+	}
+
+	@Nullable
+	public Date getSentDate() {
+		return (sentDate == null) ? null : new Date(sentDate.getTime());
+	}
+
+	@Nullable
+	public String getMessageId() {
+		return messageId;
+	}
+
+	@Nonnull
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * return the size of the content in bytes, or -1 if the size can not be
+	 * determined without reading the body.
+	 */
+	public int getSize() {
+		return size;
+	}
+}
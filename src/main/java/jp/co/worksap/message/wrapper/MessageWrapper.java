@@ -9,18 +9,30 @@
 
 package jp.co.worksap.message.wrapper;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import javax.activation.DataHandler;
 import javax.annotation.Nonnull;
@@ -33,16 +45,26 @@ import javax.mail.Multipart;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.SharedInputStream;
 
 import jp.co.worksap.message.decoder.ContentDecoder;
 import jp.co.worksap.message.decoder.HeaderDecoder;
+import jp.co.worksap.message.metrics.DecodeMetrics;
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+import jp.co.worksap.message.metrics.DecodeStage;
 import jp.co.worksap.message.parser.AddressParser;
 import jp.co.worksap.message.parser.AttachedFileParser;
 import jp.co.worksap.message.parser.ContentParser;
+import jp.co.worksap.message.util.CharsetRegistry;
 import jp.co.worksap.message.util.CharsetUtility;
 import jp.co.worksap.message.util.Encoding;
+import jp.co.worksap.message.util.MappedSharedInputStream;
 import jp.co.worksap.message.util.StringValidator;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.InputSupplier;
+
 public class MessageWrapper extends Message {
 
 	static {
@@ -52,23 +74,146 @@ public class MessageWrapper extends Message {
 
 	private static final String REPLY_TO = "Reply-To";
 
+	private static final String FROM = "From";
+
+	private static final String SUBJECT = "Subject";
+
+	private static final String CONTENT_TYPE = "Content-Type";
+
+	private static final String CONTENT_DISPOSITION = "Content-Disposition";
+
+	private static final String MESSAGE_ID = "Message-ID";
+
+	private static final Pattern LINE_BREAK = Pattern.compile("\\r\\n");
+
+	// "bytes" of completeStage() which means the size of the message. it's
+	// read only when the listener is not NOOP.
+	private static final long MESSAGE_SIZE = Long.MIN_VALUE;
+
+	// the decoders and parsers have no state, so they are shared.
+	private static final HeaderDecoder HEADER_DECODER = new HeaderDecoder();
+
+	private static final AddressParser ADDRESS_PARSER = new AddressParser();
+
+	private static final ContentDecoder CONTENT_DECODER = new ContentDecoder();
+
+	private static final CharsetGuesser DEFAULT_CHARSET_GUESSER = new CharsetGuesser();
+
 	@Nonnull
 	private final Message instance;
 
 	@Nonnull
-	private String UID;
+	private volatile String UID;
+
+	/*
+	 * the lazy values below are published through volatile fields, so the
+	 * getters can be called by several threads without outside locking. two
+	 * threads may decode the same value at once, but they get the same
+	 * result. the repairs which change the message are done under
+	 * "repairLock".
+	 */
+	private final Object repairLock = new Object();
+
+	private volatile boolean isFileNameFixed = false;
+
+	// the content whose file names are fixed. the threads which get the
+	// content at once may get different instances from MimeMessage, so they
+	// share this one. null means not decoded yet.
+	@Nullable
+	private volatile Multipart fixedContent;
+
+	// charsets found in the headers. null means not found yet.
+	@Nullable
+	private volatile Set<String> charsetCandidates;
+
+	// the guessed charset of the content which has no charset. null means
+	// not guessed yet.
+	@Nullable
+	private volatile String contentCharset;
+
+	// decoded header values. null means not decoded yet.
+	@Nullable
+	private volatile String decodedSubject;
 
-	private boolean isFileNameFixed = false;
+	@Nullable
+	private volatile InternetAddress[] decodedFrom;
+
+	@Nullable
+	private volatile Address[] decodedReplyTo;
+
+	private final ConcurrentMap<RecipientType, InternetAddress[]> decodedRecipients = new ConcurrentHashMap<RecipientType, InternetAddress[]>();
+
+	// it's immutable, and replaced when the sample size is changed
+	@Nonnull
+	private volatile CharsetGuesser charsetGuesser = DEFAULT_CHARSET_GUESSER;
+
+	// null means the global listener of DecodeMetrics
+	@Nullable
+	private volatile DecodeMetricsListener metricsListener;
 
 	public MessageWrapper(@Nullable Session session, @Nonnull InputStream is) {
+		this(session, is, false);
+	}
+
+	/**
+	 * if "lazyBody" is true, only the header block is read at the
+	 * construction. the rest of "is" is read when the content is needed at
+	 * first, so "is" must not be closed until then.
+	 */
+	public MessageWrapper(@Nullable Session session, @Nonnull InputStream is,
+			boolean lazyBody) {
 		checkNotNull(is);
 		try {
-			this.instance = new MimeMessage(session, is);
+			if (lazyBody) {
+				this.instance = createLazyMessage(session, is);
+			} else {
+				this.instance = new MimeMessage(session, is);
+			}
 		} catch (MessagingException e) {
 			throw new RuntimeException("Failed to crate MessageWrapper", e);
 		}
 	}
 	
+	/**
+	 * the message is built from the header block in "headers", and "body"
+	 * supplies the rest of the message, such as the result of BODY[TEXT] of
+	 * IMAP. the headers are decoded without the body, and "body" is called
+	 * once when the content is needed at first, such as by getContent(),
+	 * getInputStream() or writeTo(). getSize() returns -1 until then.
+	 */
+	public MessageWrapper(@Nullable Session session,
+			@Nonnull InputStream headers,
+			@Nonnull InputSupplier<? extends InputStream> body) {
+		checkNotNull(headers);
+		checkNotNull(body);
+		try {
+			// InternetHeaders reads it by one byte
+			InputStream buffered = (headers instanceof ByteArrayInputStream
+					|| headers instanceof BufferedInputStream) ? headers
+					: new BufferedInputStream(headers);
+			this.instance = new LazyMimeMessage(session, buffered, body);
+		} catch (MessagingException e) {
+			throw new RuntimeException("Failed to crate MessageWrapper", e);
+		}
+	}
+
+	/**
+	 * the file is memory-mapped and the message keeps slices of the mapping
+	 * instead of copying its content into the heap.
+	 */
+	public MessageWrapper(@Nullable Session session, @Nonnull File file) {
+		this(session, map(file));
+	}
+
+	/**
+	 * the whole channel is memory-mapped. the channel can be closed after the
+	 * construction.
+	 */
+	public MessageWrapper(@Nullable Session session,
+			@Nonnull FileChannel channel) {
+		this(session, map(channel));
+	}
+
 	public MessageWrapper(@Nonnull Session session) {
 		checkNotNull(session);
 		this.instance = new MimeMessage(session);
@@ -78,6 +223,7 @@ public class MessageWrapper extends Message {
 	public void addHeader(String headerName, String headerValue)
 			throws MessagingException {
 		instance.addHeader(headerName, headerValue);
+		headersChanged(headerName);
 	}
 
 	@Override
@@ -94,26 +240,42 @@ public class MessageWrapper extends Message {
 	public void addRecipient(RecipientType type, Address address)
 			throws MessagingException {
 		instance.addRecipient(type, address);
+		headersChanged(type.toString());
 	}
 
 	@Override
 	public Address[] getReplyTo() throws MessagingException {
+		Address[] replyTo = decodedReplyTo;
+		if (replyTo == null) {
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.ADDRESS_DECODE);
+			replyTo = decodeReplyTo();
+			decodedReplyTo = replyTo;
+			completeStage(listener, DecodeStage.ADDRESS_DECODE, start,
+					REPLY_TO, null);
+		}
+		return copy(replyTo);
+	}
+
+	private Address[] decodeReplyTo() throws MessagingException {
+		// the fallback on From is decoded without reporting it, because it's
+		// a part of the stage of Reply-To
 		String[] replyTo = getHeader(REPLY_TO);
-		AddressParser parser = new AddressParser();
-		if (parser.isBlankStrings(replyTo)) {
-			return getFrom();
+		if (ADDRESS_PARSER.isBlankStrings(replyTo)) {
+			return decodeFrom();
 		}
 
 		List<Address> addresses = new ArrayList<Address>();
 		for (String t : replyTo) {
 			String[] splitted = t.split(",");
 			for (String s : splitted) {
-				addresses.add(parser.getAddressFromRawString(s));
+				addresses.add(ADDRESS_PARSER.getAddressFromRawString(s));
 			}
 		}
 
 		if (addresses.size() == 0) {
-			return getFrom();
+			return decodeFrom();
 		}
 
 		return addresses.toArray(new Address[0]);
@@ -121,22 +283,34 @@ public class MessageWrapper extends Message {
 
 	@Override
 	public Object getContent() throws IOException, MessagingException {
+		DecodeMetricsListener listener = getMetricsListener();
+		long start = DecodeMetrics.start(listener, DecodeStage.CONTENT_DECODE);
+		Object content = decodeContent(listener);
+		completeStage(listener, DecodeStage.CONTENT_DECODE, start,
+				MESSAGE_SIZE, null);
+		return content;
+	}
+
+	private Object decodeContent(DecodeMetricsListener listener)
+			throws IOException, MessagingException {
 		if (instance instanceof MimeMessage) {
 			ContentParser parser = new ContentParser((MimeMessage) instance);
 			if (parser.isMimeMessageIncludingNoCharset()) {
-				CharsetGuesser guesser = new CharsetGuesser();
-				String charset = guesser.guessCharset(instance.getAllHeaders(),
-						((MimeMessage) instance).getRawInputStream());
-				return parser.parseContent(charset);
+				return parser.parseContent(guessContentCharset());
 			}
 			if (parser.isQuotedPrintableShiftJisContent()) {
-				return parser.parseContent(Encoding.MS932);
+				long start = DecodeMetrics.start(listener,
+						DecodeStage.QP_SHIFT_JIS);
+				Object content = parser.parseContent(Encoding.MS932);
+				completeStage(listener, DecodeStage.QP_SHIFT_JIS, start,
+						MESSAGE_SIZE, Encoding.MS932);
+				return content;
 			}
 		}
 
 		Object content = null;
 		try {
-			content = getContentFromMessage();
+			content = getContentFromMessage(listener);
 		} catch (IOException e) {
 			// Message.getContent() throws IOException if the content was
 			// broken.
@@ -147,11 +321,16 @@ public class MessageWrapper extends Message {
 			// If succeeds, the method returns decoded string and
 			// don't throw any exceptions.
 			if (instance instanceof MimeMessage) {
+				long start = DecodeMetrics.start(listener,
+						DecodeStage.CONTENT_IO_RECOVERY);
 				ContentParser parser = new ContentParser((MimeMessage) instance);
-				ContentDecoder decoder = new ContentDecoder();
-				return decoder.decodeContent(
-						((MimeMessage) instance).getRawInputStream(),
-						parser.getCharset(), "8bit");
+				String charset = parser.getCharset();
+				String decoded = CONTENT_DECODER.decodeContent(
+						((MimeMessage) instance).getRawInputStream(), charset,
+						"8bit");
+				completeStage(listener, DecodeStage.CONTENT_IO_RECOVERY,
+						start, MESSAGE_SIZE, toJavaName(charset));
+				return decoded;
 			}
 
 			// if these trial is failed, throw exception.
@@ -159,17 +338,60 @@ public class MessageWrapper extends Message {
 		}
 
 		if (!(content instanceof Multipart)) {
-			return instance.getContent();
+			return content;
 		}
 
-		if (!isFileNameFixed) {
-			// This is multipart and attached file name is often broken.
-			// This method repairs them and repackage them.
-			AttachedFileParser parser = new AttachedFileParser(instance);
-			parser.fixFileName((Multipart) content);
-			isFileNameFixed = true;
+		return fixFileName((Multipart) content, listener);
+	}
+
+	private Multipart fixFileName(Multipart content,
+			DecodeMetricsListener listener) throws IOException,
+			MessagingException {
+		Multipart fixed = fixedContent;
+		if (fixed != null) {
+			return fixed;
 		}
-		return content;
+		// the body parts are shared by the threads which get the content
+		synchronized (repairLock) {
+			if (fixedContent != null) {
+				return fixedContent;
+			}
+			if (!isFileNameFixed) {
+				// This is multipart and attached file name is often broken.
+				// This method repairs them and repackage them.
+				long start = DecodeMetrics.start(listener,
+						DecodeStage.FILE_NAME_FIX);
+				AttachedFileParser parser = new AttachedFileParser(instance,
+						getCharsetCandidates(), listener, UID);
+				parser.fixFileName(content);
+				isFileNameFixed = true;
+				completeStage(listener, DecodeStage.FILE_NAME_FIX, start,
+						MESSAGE_SIZE, null);
+			}
+			fixedContent = content;
+			return content;
+		}
+	}
+
+	/**
+	 * return a Reader of the text content. the content is decoded while the
+	 * Reader is read, with the same charset as getContent() uses. it does not
+	 * support multipart messages.
+	 */
+	public Reader getContentReader() throws IOException, MessagingException {
+		ContentParser parser = getTextContentParser();
+		return parser.openContent(getTextCharset(parser));
+	}
+
+	/**
+	 * write the text content into "out" instead of returning it by
+	 * getContent(). it does not support multipart messages.
+	 */
+	public void writeContent(@Nonnull Appendable out) throws IOException,
+			MessagingException {
+		checkNotNull(out);
+		ContentParser parser = getTextContentParser();
+		parser.parseContent(getTextCharset(parser), out);
 	}
 
 	@Override
@@ -196,7 +418,7 @@ public class MessageWrapper extends Message {
 	public String getFileName() throws MessagingException {
 		if (instance instanceof MimeMessage
 				&& instance.isMimeType("application/*")) {
-			String[] disposition = instance.getHeader("Content-Disposition");
+			String[] disposition = instance.getHeader(CONTENT_DISPOSITION);
 			String s = null;
 			if (disposition != null && disposition.length > 0) {
 				s = "\r\ncontent-disposition: " + disposition[0];
@@ -208,7 +430,7 @@ public class MessageWrapper extends Message {
 				if (isFileNameFixed) {
 					return instance.getFileName();
 				}
-				return (new HeaderDecoder()).decodeFileName(s);
+				return HEADER_DECODER.decodeFileName(s);
 			}
 		}
 
@@ -255,47 +477,56 @@ public class MessageWrapper extends Message {
 	@Override
 	public void removeHeader(String headerName) throws MessagingException {
 		instance.removeHeader(headerName);
+		headersChanged(headerName);
 	}
 
 	@Override
 	public void setContent(Multipart mp) throws MessagingException {
 		instance.setContent(mp);
+		headersChanged(CONTENT_TYPE);
 	}
 
 	@Override
 	public void setContent(Object obj, String type) throws MessagingException {
 		instance.setContent(obj, type);
+		headersChanged(CONTENT_TYPE);
 	}
 
 	@Override
 	public void setDataHandler(DataHandler dh) throws MessagingException {
 		instance.setDataHandler(dh);
+		headersChanged(CONTENT_TYPE);
 	}
 
 	@Override
 	public void setDescription(String description) throws MessagingException {
 		instance.setDescription(description);
+		headersChanged("Content-Description");
 	}
 
 	@Override
 	public void setDisposition(String disposition) throws MessagingException {
 		instance.setDisposition(disposition);
+		headersChanged(CONTENT_DISPOSITION);
 	}
 
 	@Override
 	public void setFileName(String fileName) throws MessagingException {
 		instance.setFileName(fileName);
+		headersChanged(CONTENT_DISPOSITION);
 	}
 
 	@Override
 	public void setHeader(String headerName, String headerValue)
 			throws MessagingException {
 		instance.setHeader(headerName, headerValue);
+		headersChanged(headerName);
 	}
 
 	@Override
 	public void setText(String text) throws MessagingException {
 		instance.setText(text);
+		headersChanged(CONTENT_TYPE);
 	}
 
 	@Override
@@ -306,12 +537,14 @@ public class MessageWrapper extends Message {
 	@Override
 	public void addFrom(Address[] addresses) throws MessagingException {
 		instance.addFrom(addresses);
+		headersChanged(FROM);
 	}
 
 	@Override
 	public void addRecipients(RecipientType type, Address[] addresses)
 			throws MessagingException {
 		instance.addRecipients(type, addresses);
+		headersChanged(type.toString());
 	}
 
 	@Override
@@ -329,14 +562,27 @@ public class MessageWrapper extends Message {
 	 */
 	@Override
 	public InternetAddress[] getFrom() throws MessagingException {
+		InternetAddress[] from = decodedFrom;
+		if (from == null) {
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.ADDRESS_DECODE);
+			from = decodeFrom();
+			decodedFrom = from;
+			completeStage(listener, DecodeStage.ADDRESS_DECODE, start, FROM,
+					null);
+		}
+		return copy(from);
+	}
+
+	private InternetAddress[] decodeFrom() throws MessagingException {
 		// rfc2822 says "from" field appears just 1 time.
 		// but Message class returns null when "from" field does not appear
 		Address[] garble = instance.getFrom();
-		String[] constructable = getHeader("from");
+		String[] constructable = getHeader(FROM);
 
 		try {
-			AddressParser parser = new AddressParser();
-			return parser.fixAddress(garble, constructable);
+			return ADDRESS_PARSER.fixAddress(garble, constructable);
 		} catch (MessagingException e) {
 			return cast(garble);
 		}
@@ -348,7 +594,21 @@ public class MessageWrapper extends Message {
 	 */
 	@Override
 	public String getSubject() throws MessagingException {
-		String[] subject = getHeader("subject");
+		String subject = decodedSubject;
+		if (subject == null) {
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.SUBJECT_DECODE);
+			subject = decodeSubject();
+			decodedSubject = subject;
+			completeStage(listener, DecodeStage.SUBJECT_DECODE, start,
+					SUBJECT, null);
+		}
+		return subject;
+	}
+
+	private String decodeSubject() throws MessagingException {
+		String[] subject = getHeader(SUBJECT);
 		if ((subject == null) || (subject[0] == null)) {
 			// rfc2822 says "subject field appears 0 or 1 time"
 			return "";
@@ -357,30 +617,51 @@ public class MessageWrapper extends Message {
 		// don't care lower case or upper
 		String lower = subject[0].toLowerCase();
 		if (CharsetUtility.needsMapping(lower)) {
-			HeaderDecoder decoder = new HeaderDecoder();
-			String decoded = decoder.decodeSubject(subject[0]);
-			return decoded.replaceAll("\\r\\n", "");
+			String decoded = HEADER_DECODER.decodeSubject(subject[0]);
+			return LINE_BREAK.matcher(decoded).replaceAll("");
 		}
 
 		String decoded = instance.getSubject();
 
 		// try to decode if it contains invalid char
 		if (!StringValidator.isValid(decoded)) {
-			CharsetGuesser guesser = new CharsetGuesser();
-			String charset = guesser.guessCharset(instance.getAllHeaders(),
-					new ByteArrayInputStream(subject[0].getBytes()));
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.CHARSET_GUESS);
+			CharsetGuesser guesser = charsetGuesser;
+			byte[] bytes = subject[0].getBytes();
+			String charset = guesser.guessCharset(getCharsetCandidates(),
+					new ByteArrayInputStream(bytes));
+			completeCharsetGuess(listener, start, bytes.length, charset);
 			if (!charset.isEmpty()) {
-				try {
-					return new String(subject[0].getBytes(), charset);
-				} catch (UnsupportedEncodingException e) {
-					throw new MessagingException("Unsupported encoding", e);
-				}
+				return new String(bytes, CharsetRegistry.getDefault().forName(
+						charset));
 			}
 		}
 
 		return decoded;
 	}
 
+	/**
+	 * return the decoded header fields at once. it does not read the body of
+	 * a message created with "lazyBody".
+	 */
+	@Nonnull
+	public MessageEnvelope getEnvelope() throws MessagingException {
+		String messageId;
+		if (instance instanceof MimeMessage) {
+			messageId = ((MimeMessage) instance).getMessageID();
+		} else {
+			String[] header = getHeader(MESSAGE_ID);
+			messageId = (header == null) ? null : header[0];
+		}
+		return new MessageEnvelope(getSubject(), getFrom(),
+				getRecipients(RecipientType.TO),
+				getRecipients(RecipientType.CC),
+				getRecipients(RecipientType.BCC), getReplyTo(),
+				getSentDate(), messageId, getContentType(), getSize());
+	}
+
 	@Override
 	public Date getReceivedDate() throws MessagingException {
 		return instance.getReceivedDate();
@@ -396,6 +677,21 @@ public class MessageWrapper extends Message {
 	@Override
 	public InternetAddress[] getRecipients(RecipientType type)
 			throws MessagingException {
+		InternetAddress[] recipients = decodedRecipients.get(type);
+		if (recipients == null) {
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.ADDRESS_DECODE);
+			recipients = decodeRecipients(type);
+			decodedRecipients.put(type, recipients);
+			completeStage(listener, DecodeStage.ADDRESS_DECODE, start,
+					type.toString(), null);
+		}
+		return copy(recipients);
+	}
+
+	private InternetAddress[] decodeRecipients(RecipientType type)
+			throws MessagingException {
 		Address[] garble = instance.getRecipients(type);
 		String[] constructable = getHeader(type.toString());
 		if (garble == null || constructable == null) {
@@ -403,8 +699,7 @@ public class MessageWrapper extends Message {
 		}
 
 		try {
-			AddressParser parser = new AddressParser();
-			return parser.fixAddress(garble, constructable);
+			return ADDRESS_PARSER.fixAddress(garble, constructable);
 		} catch (MessagingException e) {
 			return cast(garble);
 		}
@@ -424,6 +719,7 @@ public class MessageWrapper extends Message {
 	@Override
 	public void saveChanges() throws MessagingException {
 		instance.saveChanges();
+		headersChanged(null);
 	}
 
 	@Override
@@ -434,22 +730,26 @@ public class MessageWrapper extends Message {
 	@Override
 	public void setFrom() throws MessagingException {
 		instance.setFrom();
+		headersChanged(FROM);
 	}
 
 	@Override
 	public void setFrom(Address address) throws MessagingException {
 		instance.setFrom(address);
+		headersChanged(FROM);
 	}
 
 	@Override
 	public void setRecipients(RecipientType type, Address[] addresses)
 			throws MessagingException {
 		instance.setRecipients(type, addresses);
+		headersChanged(type.toString());
 	}
 
 	@Override
 	public void setSentDate(Date date) throws MessagingException {
 		instance.setSentDate(date);
+		headersChanged("Date");
 	}
 
 	@Override
@@ -459,6 +759,7 @@ public class MessageWrapper extends Message {
 		} else {
 			instance.setSubject(subject);
 		}
+		headersChanged(SUBJECT);
 	}
 
 	@Nonnull
@@ -473,8 +774,180 @@ public class MessageWrapper extends Message {
 		this.UID = checkNotNull(uid);
 	}
 
-	private Object getContentFromMessage() throws IOException,
-			MessagingException {
+	/**
+	 * return the listener which receives the metrics of this wrapper. it's the
+	 * global one of DecodeMetrics unless this wrapper has its own.
+	 */
+	@Nonnull
+	public DecodeMetricsListener getMetricsListener() {
+		DecodeMetricsListener listener = metricsListener;
+		return (listener == null) ? DecodeMetrics.getListener() : listener;
+	}
+
+	/**
+	 * set the listener of this wrapper. null means the global one of
+	 * DecodeMetrics.
+	 */
+	public void setMetricsListener(@Nullable DecodeMetricsListener listener) {
+		this.metricsListener = listener;
+	}
+
+	/**
+	 * limit the bytes which are decoded to guess the charset of a content
+	 * which has no charset. see CharsetGuesser(int, int).
+	 */
+	public void setCharsetSampleSize(int headSize, int tailSize) {
+		checkArgument(headSize >= 0 || headSize == CharsetGuesser.UNLIMITED,
+				"headSize: %s", headSize);
+		checkArgument(tailSize >= 0, "tailSize: %s", tailSize);
+		this.charsetGuesser = new CharsetGuesser(headSize, tailSize);
+		// the guessed charset depends on the sample
+		this.contentCharset = null;
+	}
+
+	public int getCharsetSampleHeadSize() {
+		return charsetGuesser.getSampleHeadSize();
+	}
+
+	public int getCharsetSampleTailSize() {
+		return charsetGuesser.getSampleTailSize();
+	}
+
+	private Set<String> getCharsetCandidates() throws MessagingException {
+		Set<String> candidates = charsetCandidates;
+		if (candidates == null) {
+			candidates = Collections.unmodifiableSet(charsetGuesser
+					.findCandidates(instance.getAllHeaders()));
+			charsetCandidates = candidates;
+		}
+		return candidates;
+	}
+
+	/**
+	 * guess the charset of the content once. the raw content is decoded again
+	 * only after the message is changed.
+	 */
+	private String guessContentCharset() throws MessagingException {
+		String charset = contentCharset;
+		if (charset == null) {
+			DecodeMetricsListener listener = getMetricsListener();
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.CHARSET_GUESS);
+			InputStream raw = ((MimeMessage) instance).getRawInputStream();
+			CountingInputStream counting = null;
+			if (listener != DecodeMetricsListener.NOOP) {
+				counting = new CountingInputStream(raw);
+				raw = counting;
+			}
+			charset = charsetGuesser.guessCharset(
+					getCharsetCandidates(), raw);
+			contentCharset = charset;
+			completeCharsetGuess(listener, start,
+					(counting == null) ? -1 : counting.getCount(), charset);
+		}
+		return charset;
+	}
+
+	/**
+	 * report the stage which started at "start" to the listener, with the
+	 * length of the raw header as the processed bytes.
+	 */
+	private void completeStage(DecodeMetricsListener listener,
+			DecodeStage stage, long start, String headerName, String charset)
+			throws MessagingException {
+		if (listener == DecodeMetricsListener.NOOP) {
+			return;
+		}
+		long bytes = 0;
+		String[] header = getHeader(headerName);
+		if (header != null) {
+			for (String value : header) {
+				bytes += value.length();
+			}
+		}
+		completeStage(listener, stage, start, bytes, charset);
+	}
+
+	/**
+	 * return the name of the Java charset of "charset" in a header, or null if
+	 * it's not supported. the metrics report it instead of the header, so the
+	 * charsets don't grow with the spellings the senders make up.
+	 */
+	@Nullable
+	private static String toJavaName(String charset) {
+		if (charset == null || charset.isEmpty()) {
+			return null;
+		}
+		try {
+			return CharsetRegistry.getDefault().forName(charset).name();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+		private void completeCharsetGuess(DecodeMetricsListener listener,
+			long start, long bytes, String charset) throws MessagingException {
+		if (listener == DecodeMetricsListener.NOOP) {
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		int size = getSize();
+		String guessed = charset.isEmpty() ? null : charset;
+		listener.stageCompleted(DecodeStage.CHARSET_GUESS, UID, size,
+				elapsed, bytes, guessed);
+		listener.charsetGuessed(UID, size, elapsed, bytes,
+				getCharsetCandidates(), guessed);
+	}
+
+	private void completeStage(DecodeMetricsListener listener,
+			DecodeStage stage, long start, long bytes, String charset)
+			throws MessagingException {
+		if (listener == DecodeMetricsListener.NOOP) {
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		int size = getSize();
+		listener.stageCompleted(stage, UID, size, elapsed,
+				(bytes == MESSAGE_SIZE) ? size : bytes, charset);
+	}
+
+	/**
+	 * forget the values derived from the header. the charset candidates and
+	 * everything decoded by them are derived from all headers.
+	 * 
+	 * @param headerName
+	 *            is the changed header, or null if it's unknown.
+	 */
+	private void headersChanged(@Nullable String headerName) {
+		charsetCandidates = null;
+		contentCharset = null;
+		decodedSubject = null;
+
+		if (headerName == null || headerName.equalsIgnoreCase(CONTENT_TYPE)) {
+			fixedContent = null;
+		}
+
+		if (headerName == null || headerName.equalsIgnoreCase(FROM)) {
+			// Reply-To falls back on From
+			decodedFrom = null;
+			decodedReplyTo = null;
+		} else if (headerName.equalsIgnoreCase(REPLY_TO)) {
+			decodedReplyTo = null;
+		}
+		if (headerName == null) {
+			decodedRecipients.clear();
+			return;
+		}
+		Iterator<RecipientType> it = decodedRecipients.keySet().iterator();
+		while (it.hasNext()) {
+			if (headerName.equalsIgnoreCase(it.next().toString())) {
+				it.remove();
+			}
+		}
+	}
+
+	private Object getContentFromMessage(DecodeMetricsListener listener)
+			throws IOException, MessagingException {
 		try {
 			return instance.getContent();
 		} catch (UnsupportedEncodingException e) {
@@ -483,10 +956,7 @@ public class MessageWrapper extends Message {
 			for (Entry<String, String> entry : CharsetUtility.getCharsetMap()
 					.entrySet()) {
 				if (wrongCharset.contains(entry.getKey())) {
-					String contentType = getContentType();
-					setHeader("Content-Type", contentType.split(";")[0]
-							+ "; charset=" + entry.getValue());
-					return instance.getContent();
+					return rewriteCharset(entry.getValue(), listener);
 				}
 			}
 
@@ -494,6 +964,125 @@ public class MessageWrapper extends Message {
 		}
 	}
 
+	private Object rewriteCharset(String charset,
+			DecodeMetricsListener listener) throws IOException,
+			MessagingException {
+		// the header is changed, so the other threads wait for it
+		synchronized (repairLock) {
+			long start = DecodeMetrics.start(listener,
+					DecodeStage.CHARSET_REWRITE);
+			String contentType = getContentType();
+			setHeader(CONTENT_TYPE, contentType.split(";")[0] + "; charset="
+					+ charset);
+			Object content = instance.getContent();
+			completeStage(listener, DecodeStage.CHARSET_REWRITE, start,
+					MESSAGE_SIZE, charset);
+			return content;
+		}
+	}
+
+	private ContentParser getTextContentParser() throws MessagingException {
+		if (!(instance instanceof MimeMessage)
+				|| instance.isMimeType("multipart/*")) {
+			throw new MessagingException(
+					"Multipart content can not be read as a text");
+		}
+		return new ContentParser((MimeMessage) instance);
+	}
+
+	private String getTextCharset(ContentParser parser)
+			throws MessagingException {
+		String charset = parser.getCharset();
+		if (charset.isEmpty()) {
+			String guessed = guessContentCharset();
+			if (guessed.isEmpty()) {
+				return MimeUtility.getDefaultJavaCharset();
+			}
+			return guessed;
+		}
+		if (parser.isQuotedPrintableShiftJisContent()) {
+			return Encoding.MS932;
+		}
+
+		String javaCharset = MimeUtility.javaCharset(charset);
+		if (CharsetRegistry.getDefault().isSupported(javaCharset)) {
+			return javaCharset;
+		}
+		// fix the format of the "charset" field like getContentFromMessage()
+		String mapping = CharsetUtility.getMappingCharSet(charset
+				.toLowerCase());
+		if (mapping.isEmpty()) {
+			throw new MessagingException("Unsupported charset: " + charset);
+		}
+		return mapping;
+	}
+
+	private static MimeMessage createLazyMessage(Session session,
+			InputStream is) throws MessagingException {
+		if (is instanceof SharedInputStream) {
+			final SharedInputStream sis = (SharedInputStream) is;
+			return new LazyMimeMessage(session, is,
+					new InputSupplier<InputStream>() {
+						public InputStream getInput() {
+							return sis.newStream(sis.getPosition(), -1);
+						}
+					});
+		}
+
+		// InternetHeaders reads it by one byte, so it must be buffered. the
+		// pushback of the header parser must not be lost for the body.
+		final InputStream buffered = new PushbackInputStream(
+				new BufferedInputStream(is));
+		return new LazyMimeMessage(session, buffered,
+				new InputSupplier<InputStream>() {
+					public InputStream getInput() {
+						return buffered;
+					}
+				});
+	}
+
+	private static InputStream map(File file) {
+		checkNotNull(file);
+		try {
+			return MappedSharedInputStream.map(file);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to map " + file, e);
+		}
+	}
+
+	private static InputStream map(FileChannel channel) {
+		checkNotNull(channel);
+		try {
+			return MappedSharedInputStream.map(channel);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to map the channel", e);
+		}
+	}
+
+	/**
+	 * copy the cached addresses with the elements. InternetAddress is mutable,
+	 * and the cache is shared by the callers and the threads.
+	 */
+	private static InternetAddress[] copy(InternetAddress[] addresses) {
+		InternetAddress[] copied = new InternetAddress[addresses.length];
+		for (int i = 0; i < copied.length; ++i) {
+			copied[i] = (addresses[i] == null) ? null
+					: (InternetAddress) addresses[i].clone();
+		}
+		return copied;
+	}
+
+	private static Address[] copy(Address[] addresses) {
+		// keeps the type of the array, it's InternetAddress[] for From
+		Address[] copied = addresses.clone();
+		for (int i = 0; i < copied.length; ++i) {
+			if (copied[i] instanceof InternetAddress) {
+				copied[i] = (Address) ((InternetAddress) copied[i]).clone();
+			}
+		}
+		return copied;
+	}
+
 	private InternetAddress[] cast(Address[] garble) {
 		InternetAddress[] casted = new InternetAddress[garble.length];
 		for (int i = 0; i < casted.length; ++i) {
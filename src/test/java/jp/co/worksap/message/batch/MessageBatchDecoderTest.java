@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.batch;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+
+public class MessageBatchDecoderTest {
+
+	private static final int THREADS = 4;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testDirectory() throws Exception {
+		File directory = getResourceDirectory("subject");
+		SubjectListener listener = new SubjectListener();
+
+		MessageBatchDecoder decoder = new MessageBatchDecoder(executor, 2);
+		decoder.decodeDirectory(directory, listener);
+
+		File[] files = directory.listFiles();
+		assertThat(listener.subjects.size(), is(files.length));
+		for (File file : files) {
+			assertThat(listener.subjects.get(file), is(decode(file)));
+		}
+		assertThat(listener.maxInFlight.get(), is(lessThanOrEqualTo(2)));
+	}
+
+	@Test
+	public void testMappedFiles() throws Exception {
+		File directory = getResourceDirectory("content");
+		SubjectListener listener = new SubjectListener();
+
+		List<File> files = new ArrayList<File>();
+		for (File file : directory.listFiles()) {
+			if (file.isFile()) {
+				files.add(file);
+			}
+		}
+
+		MessageBatchDecoder decoder = new MessageBatchDecoder(executor, 8);
+		decoder.setMappingThreshold(0);
+		decoder.decodeFiles(files, listener);
+
+		assertThat(listener.subjects.size(), is(files.size()));
+		for (File file : files) {
+			assertThat(listener.subjects.get(file), is(decode(file)));
+		}
+	}
+
+	@Test
+	public void testFailureIsIsolated() throws Exception {
+		File directory = getResourceDirectory("subject");
+		final File broken = new File(directory, "subject_001.txt");
+		final AtomicInteger decoded = new AtomicInteger();
+		final List<Exception> failures = new ArrayList<Exception>();
+
+		MessageBatchDecoder decoder = new MessageBatchDecoder(executor, 3);
+		decoder.decodeDirectory(directory, new MessageBatchListener<File>() {
+			public void decoded(File source, MessageWrapper message)
+					throws Exception {
+				if (source.equals(broken)) {
+					throw new IllegalStateException("broken");
+				}
+				decoded.incrementAndGet();
+			}
+
+			public synchronized void failed(File source, Exception cause) {
+				assertThat(source, is(broken));
+				failures.add(cause);
+			}
+		});
+
+		assertThat(decoded.get(), is(directory.listFiles().length - 1));
+		assertThat(failures.size(), is(1));
+	}
+
+	@Test
+	public void testSuppliers() throws Exception {
+		File directory = getResourceDirectory("address");
+		List<InputSupplier<? extends InputStream>> suppliers = new ArrayList<InputSupplier<? extends InputStream>>();
+		for (File file : directory.listFiles()) {
+			suppliers.add(Files.newInputStreamSupplier(file));
+		}
+		// not readable
+		suppliers.add(Files.newInputStreamSupplier(new File(directory,
+				"missing.txt")));
+
+		final AtomicInteger decoded = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		MessageBatchDecoder decoder = new MessageBatchDecoder(executor, 2);
+		decoder.decode(suppliers,
+				new MessageBatchListener<InputSupplier<? extends InputStream>>() {
+					public void decoded(
+							InputSupplier<? extends InputStream> source,
+							MessageWrapper message) throws Exception {
+						message.getFrom();
+						decoded.incrementAndGet();
+					}
+
+					public void failed(
+							InputSupplier<? extends InputStream> source,
+							Exception cause) {
+						failed.incrementAndGet();
+					}
+				});
+
+		assertThat(decoded.get(), is(suppliers.size() - 1));
+		assertThat(failed.get(), is(1));
+	}
+
+	private static String decode(File file) throws Exception {
+		return new MessageWrapper(null, file).getSubject();
+	}
+
+	private static File getResourceDirectory(String name)
+			throws URISyntaxException {
+		return new File(MessageBatchDecoderTest.class.getClassLoader()
+				.getResource(name).toURI());
+	}
+
+	private static class SubjectListener implements
+			MessageBatchListener<File> {
+		private final Map<File, String> subjects = new ConcurrentHashMap<File, String>();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+
+		public void decoded(File source, MessageWrapper message)
+				throws Exception {
+			int current = inFlight.incrementAndGet();
+			try {
+				int max;
+				do {
+					max = maxInFlight.get();
+				} while (current > max
+						&& !maxInFlight.compareAndSet(max, current));
+				subjects.put(source, message.getSubject());
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+
+		public void failed(File source, Exception cause) {
+			throw new AssertionError(cause);
+		}
+	}
+}
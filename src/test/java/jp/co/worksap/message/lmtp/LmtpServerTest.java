@@ -0,0 +1,239 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.lmtp;
+
+import static org.hamcrest.Matchers.startsWith;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class LmtpServerTest {
+
+	private static final String MESSAGE = "Subject: =?ISO-2022-JP?B?GyRCJUYlOSVIGyhC?=\r\n"
+			+ "Content-Type: text/plain; charset=us-ascii\r\n"
+			+ "\r\n"
+			+ "..a line which starts with a dot\r\n" + "last line\r\n";
+
+	private LmtpServer server;
+
+	private final List<Object[]> delivered = new CopyOnWriteArrayList<Object[]>();
+
+	private final LmtpHandler handler = new LmtpHandler() {
+		public void deliver(LmtpTransaction transaction, MessageWrapper message)
+				throws Exception {
+			delivered.add(new Object[] { transaction, message.getSubject(),
+					message.getContent() });
+		}
+	};
+
+	@After
+	public void tearDown() throws IOException {
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDeliver() throws Exception {
+		start(handler, 4, 1024 * 1024);
+		Client client = new Client();
+		try {
+			assertThat(client.readReply(), startsWith("220 "));
+			assertThat(client.command("LHLO client.example.com"),
+					is("250 SIZE 1048576"));
+			assertThat(client.command("MAIL FROM:<sender@example.com>"),
+					startsWith("250 "));
+			assertThat(client.command("RCPT TO:<to1@example.com>"),
+					startsWith("250 "));
+			assertThat(client.command("RCPT TO:<to2@example.com>"),
+					startsWith("250 "));
+			assertThat(client.command("DATA"), startsWith("354 "));
+			client.send(MESSAGE + ".\r\n");
+			assertThat(client.readReply(), is("250 2.0.0 Delivered "
+					+ "<to1@example.com>"));
+			assertThat(client.readReply(), is("250 2.0.0 Delivered "
+					+ "<to2@example.com>"));
+			assertThat(client.command("QUIT"), startsWith("221 "));
+		} finally {
+			client.close();
+		}
+
+		assertThat(delivered.size(), is(1));
+		LmtpTransaction transaction = (LmtpTransaction) delivered.get(0)[0];
+		assertThat(transaction.getClientName(), is("client.example.com"));
+		assertThat(transaction.getSender(), is("sender@example.com"));
+		assertThat(transaction.getRecipients(),
+				is(Arrays.asList("to1@example.com", "to2@example.com")));
+		assertThat(delivered.get(0)[1], is((Object) "テスト"));
+		assertThat(delivered.get(0)[2], is((Object) (".a line which starts "
+				+ "with a dot\r\nlast line\r\n")));
+	}
+
+	@Test
+	public void testMessageTooBig() throws Exception {
+		start(handler, 4, 1024);
+		server.setMaxMessageSize(64);
+		Client client = new Client();
+		try {
+			client.readReply();
+			client.command("LHLO client.example.com");
+			assertThat(client.command("MAIL FROM:<> SIZE=65"),
+					startsWith("552 "));
+			assertThat(client.command("MAIL FROM:<>"), startsWith("250 "));
+			client.command("RCPT TO:<to@example.com>");
+			client.command("DATA");
+			client.send(MESSAGE + MESSAGE + ".\r\n");
+			assertThat(client.readReply(), startsWith("552 5.3.4"));
+
+			// the connection is still usable
+			assertThat(client.command("NOOP"), startsWith("250 "));
+		} finally {
+			client.close();
+		}
+		assertThat(delivered.size(), is(0));
+	}
+
+	@Test
+	public void testHandlerFailure() throws Exception {
+		start(new LmtpHandler() {
+			public void deliver(LmtpTransaction transaction,
+					MessageWrapper message) throws Exception {
+				throw new IllegalStateException("not ready");
+			}
+		}, 4, 1024 * 1024);
+		Client client = new Client();
+		try {
+			client.readReply();
+			client.command("LHLO client.example.com");
+			client.command("MAIL FROM:<sender@example.com>");
+			client.command("RCPT TO:<to@example.com>");
+			client.command("DATA");
+			client.send(MESSAGE + ".\r\n");
+			assertThat(client.readReply(), startsWith("451 "));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testCommandSequence() throws Exception {
+		start(handler, 4, 1024 * 1024);
+		Client client = new Client();
+		try {
+			client.readReply();
+			assertThat(client.command("MAIL FROM:<>"), startsWith("503 "));
+			client.command("LHLO client.example.com");
+			assertThat(client.command("RCPT TO:<to@example.com>"),
+					startsWith("503 "));
+			assertThat(client.command("MAIL FROM:<>"), startsWith("250 "));
+			assertThat(client.command("DATA"), startsWith("503 "));
+			assertThat(client.command("RCPT TO:to@example.com"),
+					startsWith("501 "));
+			assertThat(client.command("HELO client.example.com"),
+					startsWith("500 "));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testMaxSessions() throws Exception {
+		start(handler, 1, 1024 * 1024);
+		Client first = new Client();
+		Client second = null;
+		try {
+			assertThat(first.readReply(), startsWith("220 "));
+
+			second = new Client();
+			second.socket.setSoTimeout(200);
+			try {
+				second.readReply();
+				fail("served beyond maxSessions");
+			} catch (SocketTimeoutException e) {
+				// waiting in the backlog
+			}
+
+			first.command("QUIT");
+			second.socket.setSoTimeout(5000);
+			assertThat(second.readReply(), startsWith("220 "));
+		} finally {
+			first.close();
+			if (second != null) {
+				second.close();
+			}
+		}
+	}
+
+	private void start(LmtpHandler handler, int maxSessions,
+			int maxInFlightBytes) throws IOException {
+		server = new LmtpServer(handler, maxSessions, maxInFlightBytes);
+		server.start(new InetSocketAddress(InetAddress.getByName(null), 0));
+	}
+
+	private class Client {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final OutputStream out;
+
+		Client() throws IOException {
+			socket = new Socket(InetAddress.getByName(null),
+					server.getLocalPort());
+			socket.setSoTimeout(5000);
+			in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), Charsets.US_ASCII));
+			out = socket.getOutputStream();
+		}
+
+		void send(String text) throws IOException {
+			out.write(text.getBytes(Charsets.UTF_8));
+			out.flush();
+		}
+
+		/**
+		 * return the last line of a reply.
+		 */
+		String readReply() throws IOException {
+			String line;
+			do {
+				line = in.readLine();
+			} while (line != null && line.length() > 3
+					&& line.charAt(3) == '-');
+			return line;
+		}
+
+		String command(String command) throws IOException {
+			send(command + "\r\n");
+			return readReply();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.maildir;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jp.co.worksap.message.batch.MessageBatchDecoder;
+import jp.co.worksap.message.batch.MessageBatchListener;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class MaildirIngestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ExecutorService executor;
+
+	private MessageBatchDecoder decoder;
+
+	private File maildir;
+
+	private File checkpointFile;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newFixedThreadPool(4);
+		decoder = new MessageBatchDecoder(executor, 2);
+		maildir = folder.newFolder("Maildir");
+		for (String name : new String[] { "new", "cur", "tmp" }) {
+			new File(maildir, name).mkdir();
+		}
+		checkpointFile = new File(folder.getRoot(), "checkpoint");
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testIngest() throws Exception {
+		File[] files = getSubjectFiles();
+		for (int i = 0; i < files.length; i++) {
+			Files.copy(files[i], new File(maildir, "new/" + i + ".test"));
+		}
+
+		UidListener listener = new UidListener();
+		MaildirIngest ingest = new MaildirIngest(maildir, checkpointFile,
+				decoder);
+		try {
+			assertThat(ingest.poll(listener), is(files.length));
+			assertThat(listener.subjects.size(), is(files.length));
+			for (int i = 0; i < files.length; i++) {
+				assertThat(listener.subjects.get(i + ".test"),
+						is(new MessageWrapper(null, files[i]).getSubject()));
+			}
+			assertThat(ingest.poll(listener), is(0));
+
+			// read by a client
+			Files.move(new File(maildir, "new/0.test"), new File(maildir,
+					"cur/0.test:2,S"));
+			assertThat(ingest.poll(listener), is(0));
+		} finally {
+			ingest.close();
+		}
+
+		// restarted
+		ingest = new MaildirIngest(maildir, checkpointFile, decoder);
+		try {
+			assertThat(ingest.poll(listener), is(0));
+			Files.copy(files[0], new File(maildir, "new/arrived.test"));
+			assertThat(ingest.poll(listener), is(1));
+			assertThat(listener.subjects.size(), is(files.length + 1));
+		} finally {
+			ingest.close();
+		}
+	}
+
+	@Test
+	public void testFailureIsRetried() throws Exception {
+		Files.copy(getSubjectFiles()[0], new File(maildir, "new/0.test"));
+		MaildirIngest ingest = new MaildirIngest(maildir, checkpointFile,
+				decoder);
+		try {
+			FailingListener failing = new FailingListener();
+			assertThat(ingest.poll(failing), is(0));
+			assertThat(failing.failures, is(1));
+
+			UidListener listener = new UidListener();
+			assertThat(ingest.poll(listener), is(1));
+			assertThat(listener.subjects.keySet(),
+					is(Collections.singleton("0.test")));
+		} finally {
+			ingest.close();
+		}
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		MaildirCheckpoint checkpoint = new MaildirCheckpoint(checkpointFile);
+		try {
+			for (int i = 0; i < 2000; i++) {
+				checkpoint.add("message" + i);
+			}
+			checkpoint.add("message0");
+			assertThat(checkpoint.size(), is(2000));
+
+			checkpoint.retainAll(Arrays.asList("message1", "message2"));
+			assertThat(checkpoint.size(), is(2));
+			// compacted
+			assertThat(Files.readLines(checkpointFile, Charsets.UTF_8).size(),
+					is(2));
+			checkpoint.add("message3");
+		} finally {
+			checkpoint.close();
+		}
+
+		// a line which was not completely written
+		Files.append("message4", checkpointFile, Charsets.UTF_8);
+		checkpoint = new MaildirCheckpoint(checkpointFile);
+		try {
+			assertThat(checkpoint.size(), is(3));
+			assertThat(checkpoint.contains("message3"), is(true));
+			assertThat(checkpoint.contains("message4"), is(false));
+		} finally {
+			checkpoint.close();
+		}
+	}
+
+	@Test
+	public void testIncompleteLineIsTruncated() throws Exception {
+		// crashed in the middle of add()
+		Files.write("message1\nmess", checkpointFile, Charsets.UTF_8);
+
+		MaildirCheckpoint checkpoint = new MaildirCheckpoint(checkpointFile);
+		try {
+			assertThat(checkpoint.size(), is(1));
+			checkpoint.add("message2");
+		} finally {
+			checkpoint.close();
+		}
+
+		assertThat(Files.readLines(checkpointFile, Charsets.UTF_8),
+				is(Arrays.asList("message1", "message2")));
+		checkpoint = new MaildirCheckpoint(checkpointFile);
+		try {
+			assertThat(checkpoint.size(), is(2));
+			assertThat(checkpoint.contains("message2"), is(true));
+		} finally {
+			checkpoint.close();
+		}
+	}
+
+	@Test
+	public void testRecoverFromCompaction() throws Exception {
+		// crashed after the old file was deleted by compact()
+		File temporary = new File(checkpointFile.getPath() + ".tmp");
+		Files.write("message1\nmessage2\n", temporary, Charsets.UTF_8);
+
+		MaildirCheckpoint checkpoint = new MaildirCheckpoint(checkpointFile);
+		try {
+			assertThat(checkpoint.size(), is(2));
+			assertThat(checkpoint.contains("message1"), is(true));
+			checkpoint.add("message3");
+		} finally {
+			checkpoint.close();
+		}
+		assertThat(temporary.exists(), is(false));
+		assertThat(Files.readLines(checkpointFile, Charsets.UTF_8),
+				is(Arrays.asList("message1", "message2", "message3")));
+	}
+
+	@Test
+	public void testUniqueName() {
+		assertThat(MaildirIngest.getUniqueName("1355.M1P2.host:2,RS"),
+				is("1355.M1P2.host"));
+		assertThat(MaildirIngest.getUniqueName("1355.M1P2.host"),
+				is("1355.M1P2.host"));
+	}
+
+	private static File[] getSubjectFiles() throws URISyntaxException {
+		File directory = new File(MaildirIngestTest.class.getClassLoader()
+				.getResource("subject").toURI());
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static class UidListener implements MessageBatchListener<File> {
+		private final Map<String, String> subjects = new ConcurrentHashMap<String, String>();
+
+		public void decoded(File source, MessageWrapper message)
+				throws Exception {
+			subjects.put(message.getUID(), message.getSubject());
+		}
+
+		public void failed(File source, Exception cause) {
+			throw new AssertionError(cause);
+		}
+	}
+
+	private static class FailingListener implements MessageBatchListener<File> {
+		private int failures = 0;
+
+		public void decoded(File source, MessageWrapper message)
+				throws Exception {
+			throw new IllegalStateException("not ready");
+		}
+
+		public synchronized void failed(File source, Exception cause) {
+			failures++;
+		}
+	}
+}
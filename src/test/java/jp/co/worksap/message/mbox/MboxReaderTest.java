@@ -0,0 +1,151 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.mbox;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class MboxReaderTest {
+
+	private static final String ESCAPED_MESSAGE = "Subject: escaped\n"
+			+ "Content-Type: text/plain; charset=us-ascii\n\n"
+			+ ">From the first line\n" + "a line\n"
+			+ ">>From a quoted line\n" + "not >From here";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSubjects() throws Exception {
+		File[] files = getSubjectFiles();
+		File mbox = createMbox(files);
+
+		List<String> subjects = readSubjects(new MboxReader(null, mbox));
+		assertThat(subjects, is(decode(files)));
+	}
+
+	@Test
+	public void testRegions() throws Exception {
+		File[] files = getSubjectFiles();
+		File mbox = createMbox(files);
+
+		// every message is in several regions
+		List<String> subjects = readSubjects(new MboxReader(null, mbox, 384));
+		assertThat(subjects, is(decode(files)));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testMessageLargerThanRegion() throws Exception {
+		File mbox = createMbox(getSubjectFiles());
+		readSubjects(new MboxReader(null, mbox, 16));
+	}
+
+	@Test
+	public void testUnescapeFrom() throws Exception {
+		File mbox = folder.newFile("escaped.mbox");
+		Files.write("From sender@example.com Thu Jan  1 00:00:00 2012\n"
+				+ ESCAPED_MESSAGE + "\n\n"
+				+ "From sender@example.com Thu Jan  1 00:00:00 2012\n"
+				+ ESCAPED_MESSAGE + "\n\n", mbox, Charsets.US_ASCII);
+
+		MboxReader reader = new MboxReader(null, mbox);
+		List<Object> contents = new ArrayList<Object>();
+		for (MessageWrapper message : reader) {
+			contents.add(message.getContent());
+		}
+		Object unescaped = decodeContent(ESCAPED_MESSAGE.replace(
+				">From the", "From the").replace(">>From", ">From"));
+		assertThat(contents, is(Arrays.asList(unescaped, unescaped)));
+
+		reader.setUnescapeFrom(false);
+		for (MessageWrapper message : reader) {
+			assertThat(message.getContent(), is(decodeContent(ESCAPED_MESSAGE)));
+		}
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		File[] files = getSubjectFiles();
+		File mbox = createMbox(files);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MboxReader reader = new MboxReader(null, mbox, 384);
+			List<String> subjects = readSubjects(reader.parallel(executor, 3));
+			assertThat(subjects, is(decode(files)));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private File createMbox(File[] files) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (File file : files) {
+			out.write(("From sender@example.com Thu Jan  1 00:00:00 2012\n")
+					.getBytes(Charsets.US_ASCII));
+			out.write(Files.toByteArray(file));
+			out.write("\n\n".getBytes(Charsets.US_ASCII));
+		}
+		File mbox = folder.newFile("test.mbox");
+		Files.write(out.toByteArray(), mbox);
+		return mbox;
+	}
+
+	private static List<String> readSubjects(Iterable<MessageWrapper> messages)
+			throws Exception {
+		List<String> subjects = new ArrayList<String>();
+		for (MessageWrapper message : messages) {
+			subjects.add(message.getSubject());
+		}
+		return subjects;
+	}
+
+	private static Object decodeContent(String message) throws Exception {
+		byte[] bytes = (message + "\n").getBytes(Charsets.US_ASCII);
+		return new MessageWrapper(null, new ByteArrayInputStream(bytes))
+				.getContent();
+	}
+
+	private static List<String> decode(File[] files) throws Exception {
+		List<String> subjects = new ArrayList<String>();
+		for (File file : files) {
+			subjects.add(new MessageWrapper(null, file).getSubject());
+		}
+		return subjects;
+	}
+
+	private static File[] getSubjectFiles() throws URISyntaxException {
+		File directory = new File(MboxReaderTest.class.getClassLoader()
+				.getResource("subject").toURI());
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+}
@@ -0,0 +1,187 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.push;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.InternetHeaders;
+
+import jp.co.worksap.message.wrapper.MessageEnvelope;
+import jp.co.worksap.message.wrapper.MessageWrapper;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class MessagePushParserTest {
+
+	private static final String MESSAGE = "Subject: =?ISO-2022-JP?B?GyRCJUYlOSVIGyhC?=\r\n"
+			+ "From: sender@example.com\r\n"
+			+ "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+			+ "\r\n"
+			+ "preamble\r\n"
+			+ "--outer\r\n"
+			+ "Content-Type: multipart/alternative; boundary=inner\r\n"
+			+ "\r\n"
+			+ "--inner\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "plain\r\n"
+			+ "--inner\r\n"
+			+ "Content-Type: text/html\r\n"
+			+ "\r\n"
+			+ "<p>html</p>\r\n"
+			+ "--inner--\r\n"
+			+ "--outer \r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "Content-Disposition: attachment;\r\n"
+			+ " filename=\"=?ISO-2022-JP?B?GyRCJUYlOSVIGyhC?=.bin\"\r\n"
+			+ "\r\n"
+			+ "0123456789\r\n"
+			+ "--outerX\r\n"
+			+ "--outer--\r\n" + "epilogue\r\n";
+
+	@Test
+	public void testEvents() throws Exception {
+		byte[] bytes = MESSAGE.getBytes(Charsets.US_ASCII);
+		for (int chunkSize : new int[] { 1, 7, bytes.length }) {
+			RecordingListener listener = new RecordingListener();
+			parse(bytes, chunkSize, listener);
+			assertThat(listener.events, is(Arrays.asList("envelope テスト",
+					"start 1 multipart/alternative; boundary=inner",
+					"start 1.1 text/plain", "end 1.1 5",
+					"start 1.2 text/html", "end 1.2 11", "end 1 102",
+					"start 2 application/octet-stream",
+					"attachment 2 テスト.bin", "end 2 20",
+					"completed " + bytes.length)));
+		}
+	}
+
+	@Test
+	public void testSinglePart() throws Exception {
+		byte[] bytes = ("Subject: single\r\n"
+				+ "Content-Type: application/pdf; name=\"a.pdf\"\r\n"
+				+ "\r\n" + "%PDF").getBytes(Charsets.US_ASCII);
+		RecordingListener listener = new RecordingListener();
+		parse(bytes, 3, listener);
+		assertThat(listener.events, is(Arrays.asList("envelope single",
+				"start 1 application/pdf; name=\"a.pdf\"",
+				"attachment 1 a.pdf", "end 1 4", "completed " + bytes.length)));
+	}
+
+	@Test
+	public void testEnvelopeBeforeBody() throws Exception {
+		String headers = MESSAGE.substring(0, MESSAGE.indexOf("preamble"));
+		RecordingListener listener = new RecordingListener();
+		MessagePushParser parser = new MessagePushParser(null, listener);
+		parser.feed(ByteBuffer.wrap((headers + "pream")
+				.getBytes(Charsets.US_ASCII)));
+		assertThat(listener.events, is(Arrays.asList("envelope テスト")));
+		assertThat(listener.envelope.getFrom()[0].getAddress(),
+				is("sender@example.com"));
+	}
+
+	@Test(expected = MessagingException.class)
+	public void testHeaderTooLarge() throws Exception {
+		MessagePushParser parser = new MessagePushParser(null,
+				new RecordingListener(), 64);
+		parser.feed(ByteBuffer.wrap(MESSAGE.getBytes(Charsets.US_ASCII)));
+	}
+
+	@Test
+	public void testFileNames() throws Exception {
+		File directory = new File(MessagePushParserTest.class
+				.getClassLoader().getResource("filename").toURI());
+		for (File file : directory.listFiles()) {
+			RecordingListener listener = new RecordingListener();
+			parse(Files.toByteArray(file), 5, listener);
+
+			MessageWrapper message = new MessageWrapper(null, file);
+			assertThat(file.getName(), listener.envelope.getSubject(),
+					is(message.getSubject()));
+			assertThat(file.getName(), listener.fileNames,
+					is(getFileNames(message.getContent())));
+		}
+	}
+
+	private static void parse(byte[] bytes, int chunkSize,
+			MessagePushListener listener) throws MessagingException {
+		MessagePushParser parser = new MessagePushParser(null, listener);
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			ByteBuffer chunk = ByteBuffer.wrap(bytes, i,
+					Math.min(chunkSize, bytes.length - i));
+			parser.feed(chunk);
+			assertThat(chunk.hasRemaining(), is(false));
+		}
+		parser.finish();
+	}
+
+	private static List<String> getFileNames(Object content)
+			throws MessagingException, IOException {
+		List<String> fileNames = new ArrayList<String>();
+		if (!(content instanceof Multipart)) {
+			return fileNames;
+		}
+		Multipart multipart = (Multipart) content;
+		for (int i = 0; i < multipart.getCount(); i++) {
+			BodyPart part = multipart.getBodyPart(i);
+			if (part.isMimeType("multipart/*")) {
+				fileNames.addAll(getFileNames(part.getContent()));
+			} else if (part.getFileName() != null) {
+				fileNames.add(part.getFileName());
+			}
+		}
+		return fileNames;
+	}
+
+	private static class RecordingListener implements MessagePushListener {
+		private final List<String> events = new ArrayList<String>();
+		private final List<String> fileNames = new ArrayList<String>();
+		private MessageEnvelope envelope;
+
+		public void envelopeDecoded(MessageEnvelope envelope,
+				InternetHeaders headers) {
+			this.envelope = envelope;
+			events.add("envelope " + envelope.getSubject());
+		}
+
+		public void partStarted(MessagePart part) {
+			events.add("start " + part.getPath() + " "
+					+ part.getContentType());
+		}
+
+		public void attachmentFound(MessagePart part) {
+			events.add("attachment " + part.getPath() + " "
+					+ part.getFileName());
+			fileNames.add(part.getFileName());
+		}
+
+		public void partEnded(MessagePart part, long size) {
+			events.add("end " + part.getPath() + " " + size);
+		}
+
+		public void completed(long size) {
+			events.add("completed " + size);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import javax.mail.internet.InternetHeaders;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Bytes;
+
+public class CharsetGuesserTest {
+
+	// long enough to be read by several chunks
+	private static final String TEXT = Strings.repeat("テスト髙﨑 test ", 500);
+
+	// long enough to decide the order before the end
+	private static final String LONG_TEXT = Strings.repeat("テスト髙﨑 test ", 2000);
+
+	@Test
+	public void testEveryCandidateSeesWholeInput()
+			throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("shift_jis", "utf-8");
+		byte[] utf8 = TEXT.getBytes("UTF-8");
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		String charset = guesser.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(utf8));
+		assertThat(charset, is("utf-8"));
+	}
+
+	@Test
+	public void testOrderOfHeaders() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("utf-8", "iso-2022-jp");
+		byte[] ascii = "plain ascii text".getBytes("US-ASCII");
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		String charset = guesser.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(ascii));
+		assertThat(charset, is("utf-8"));
+	}
+
+	@Test
+	public void testGb18030() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("gb2312", "utf-8");
+		byte[] gb18030 = TEXT.getBytes("GB18030");
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		String charset = guesser.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(gb18030));
+		assertThat(charset, is("GB18030"));
+	}
+
+	@Test
+	public void testGb18030IsLastResort() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("gb2312", "utf-8");
+		// 0xff is not a byte of GB18030 nor UTF-8
+		byte[] text = Bytes.concat(TEXT.getBytes("GB18030"), new byte[] {
+				(byte) 0xff, (byte) 0xff });
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		List<CharsetGuess> guesses = guesser.rankCharsets(
+				headers.getAllHeaders(), new ByteArrayInputStream(text));
+		assertThat(guesses.size(), is(1));
+		assertThat(guesses.get(0).getCharset(), is("GB18030"));
+		assertThat(guesses.get(0).getConfidence(), is(0.0));
+	}
+
+	@Test
+	public void testSampleHead() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("utf-8", "shift_jis");
+		// broken at the end
+		byte[] text = Bytes.concat(TEXT.getBytes("UTF-8"),
+				"\r\nテスト".getBytes("MS932"));
+
+		CharsetGuesser whole = new CharsetGuesser();
+		assertThat(whole.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(text)), is(""));
+
+		CharsetGuesser head = new CharsetGuesser(1024, 0);
+		assertThat(head.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(text)), is("utf-8"));
+
+		CharsetGuesser headAndTail = new CharsetGuesser(1024, 512);
+		assertThat(headAndTail.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(text)), is(""));
+	}
+
+	@Test
+	public void testSampleTail() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("utf-8", "shift_jis");
+		byte[] text = Bytes.concat("plain ascii text\r\n".getBytes("US-ASCII"),
+				TEXT.getBytes("MS932"), "\r\nテスト".getBytes("MS932"));
+
+		CharsetGuesser headAndTail = new CharsetGuesser(16, 512);
+		assertThat(headAndTail.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(text)), is("MS932"));
+	}
+
+	@Test
+	public void testRanking() throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("gb2312", "shift_jis");
+		byte[] sjis = TEXT.getBytes("MS932");
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		List<CharsetGuess> guesses = guesser.rankCharsets(
+				headers.getAllHeaders(), new ByteArrayInputStream(sjis));
+		assertThat(guesses.get(0).getCharset(), is("MS932"));
+		assertThat(guesses.get(0).getConfidence(), is(greaterThan(guesses
+				.get(guesses.size() - 1).getConfidence())));
+	}
+
+	@Test
+	public void testEarlyTermination() throws UnsupportedEncodingException {
+		// both can decode it, and UTF-8 is clearly ahead
+		InternetHeaders headers = createHeaders("iso-8859-1", "utf-8");
+		byte[] utf8 = LONG_TEXT.getBytes("UTF-8");
+
+		CharsetGuesser sample = new CharsetGuesser(utf8.length, 0);
+		ByteArrayInputStream input = new ByteArrayInputStream(utf8);
+		assertThat(sample.guessCharset(headers.getAllHeaders(), input),
+				is("utf-8"));
+		assertThat(input.available(), is(greaterThan(0)));
+
+		// the whole input is decoded without the budget
+		CharsetGuesser whole = new CharsetGuesser();
+		input = new ByteArrayInputStream(utf8);
+		assertThat(whole.guessCharset(headers.getAllHeaders(), input),
+				is("utf-8"));
+		assertThat(input.available(), is(0));
+	}
+
+	@Test
+	public void testLoneSurvivorIsDecodedToEnd()
+			throws UnsupportedEncodingException {
+		InternetHeaders headers = createHeaders("shift_jis");
+		// broken at the end
+		byte[] text = Bytes.concat(
+				Strings.repeat("あいうえお\n", 1000).getBytes("MS932"),
+				new byte[] { (byte) 0xff, (byte) 0xff });
+
+		CharsetGuesser guesser = new CharsetGuesser();
+		assertThat(guesser.guessCharset(headers.getAllHeaders(),
+				new ByteArrayInputStream(text)), is(""));
+	}
+
+	private static InternetHeaders createHeaders(String... charsets) {
+		InternetHeaders headers = new InternetHeaders();
+		for (int i = 0; i < charsets.length; i++) {
+			headers.addHeader("X-Test-" + i, "text/plain; charset="
+					+ charsets[i]);
+		}
+		return headers;
+	}
+}
@@ -38,6 +38,8 @@ public class MessageWrapperAddressTest {
 	private final static int ADDRESS_TO = 1;
 	private final static int ADDRESS_CC = 2;
 	private final static int ADDRESS_REPLY_TO = 3;
+	private final static String[] ADDRESS_HEADERS = { "From", "To", "Cc",
+			"Reply-To" };
 
 	private final String fileName;
 	private final String expectedPerson;
@@ -73,24 +75,42 @@ public class MessageWrapperAddressTest {
 	@Test
 	public void testAddress() throws MessagingException {
 		Message m = createMessage(String.format(ADDRESS_TEST_PATH, fileName));
-		Address actualAddress;
+		assertAddress(getAddress(m), expectedPerson, expectedAddress);
+	}
+
+	@Test
+	public void testChangedAddress() throws MessagingException {
+		Message m = createMessage(String.format(ADDRESS_TEST_PATH, fileName));
+		// decoded address is cached
+		getAddress(m);
+		m.setHeader(ADDRESS_HEADERS[addressType], "changed <changed@mail.com>");
+		assertAddress(getAddress(m), "changed", "changed@mail.com");
+	}
+
+	@Test
+	public void testCachedAddressIsCopied() throws MessagingException {
+		Message m = createMessage(String.format(ADDRESS_TEST_PATH, fileName));
+		InternetAddress returned = (InternetAddress) getAddress(m);
+		returned.setAddress("modified@mail.com");
+		// the cached address is not changed by the caller
+		assertAddress(getAddress(m), expectedPerson, expectedAddress);
+	}
+
+	// -----------------------------------------------------------------
+
+	private Address getAddress(Message m) throws MessagingException {
 		switch (addressType) {
 		case ADDRESS_FROM:
-			actualAddress = m.getFrom()[0];
-			break;
+			return m.getFrom()[0];
 		case ADDRESS_TO:
-			actualAddress = m.getRecipients(RecipientType.TO)[0];
-			break;
+			return m.getRecipients(RecipientType.TO)[0];
 		case ADDRESS_CC:
-			actualAddress = m.getRecipients(RecipientType.CC)[0];
-			break;
+			return m.getRecipients(RecipientType.CC)[0];
 		case ADDRESS_REPLY_TO:
-			actualAddress = m.getReplyTo()[0];
-			break;
+			return m.getReplyTo()[0];
 		default:
 			throw new IllegalArgumentException("Illegal Address Type");
 		}
-		assertAddress(actualAddress, expectedPerson, expectedAddress);
 	}
 
 	// -----------------------------------------------------------------
@@ -0,0 +1,112 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class MessageWrapperConcurrencyTest {
+
+	private static final int THREADS = 8;
+
+	private final String resourceName;
+
+	public MessageWrapperConcurrencyTest(String resourceName) {
+		this.resourceName = resourceName;
+	}
+
+	@Parameters
+	public static Collection<Object[]> data() {
+		Object[][] data = new Object[][] {
+				// Subject is partly encoded and some sections start with
+				// not-encoded character.
+				{ "subject/subject_005.txt" },
+				// the specified charset is GB2312 but in fact it is GB18030
+				{ "content/content_005.txt" },
+				// base64; iso-2022-jp, URLEncode;
+				{ "filename/filename_003.txt" },
+				// Declared as base64, is 7bit; No char-set, is ISO-2022-JP
+				{ "filename/filename_004.txt" } };
+		return Arrays.asList(data);
+	}
+
+	@Test
+	public void testSharedWrapper() throws Exception {
+		String expected = decode(createMessage(resourceName));
+		final MessageWrapper shared = createMessage(resourceName);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return decode(shared);
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<String> result : results) {
+				assertThat(result.get(), is(expected));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static String decode(MessageWrapper message) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append(message.getSubject()).append('\n');
+		sb.append(Arrays.toString(message.getFrom())).append('\n');
+		sb.append(Arrays.toString(message.getRecipients(RecipientType.TO)))
+				.append('\n');
+		sb.append(Arrays.toString(message.getReplyTo())).append('\n');
+		Object content = message.getContent();
+		if (content instanceof Multipart) {
+			Multipart mp = (Multipart) content;
+			for (int i = 0; i < mp.getCount(); i++) {
+				sb.append(mp.getBodyPart(i).getFileName()).append('\n');
+			}
+		} else {
+			sb.append(content);
+		}
+		return sb.toString();
+	}
+
+	private static MessageWrapper createMessage(String resourceName)
+			throws MessagingException {
+		InputStream is = MessageWrapperConcurrencyTest.class.getClassLoader()
+				.getResourceAsStream(resourceName);
+		return new MessageWrapper(null, is);
+	}
+}
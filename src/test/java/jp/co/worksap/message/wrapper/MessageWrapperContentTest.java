@@ -13,6 +13,7 @@ import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -32,6 +33,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
 
 @RunWith(Parameterized.class)
@@ -97,6 +99,40 @@ public class MessageWrapperContentTest {
 				checkCondition);
 	}
 
+	@Test
+	public void testReader() throws MessagingException, IOException {
+		MessageWrapper message = createMessage(String.format(sourceFilePath,
+				fileNum));
+		if (message.getContentType().startsWith("multipart")) {
+			return;
+		}
+		String body = CharStreams.toString(message.getContentReader());
+		assertBody(String.format(expectedFilePath, fileNum), body, encoding,
+				checkCondition);
+
+		StringBuilder written = new StringBuilder();
+		message.writeContent(written);
+		assertThat(written.toString(), is(body));
+	}
+
+	@Test
+	public void testContentTypeCharset() throws MessagingException,
+			IOException {
+		// a quoted charset
+		assertThat(getContentType("text/plain; charset=\"shift_jis\""),
+				is("text/plain; charset=\"MS932\""));
+		// not the last parameter, in mixed case
+		assertThat(getContentType("text/plain; CharSet=Shift_JIS; format=flowed"),
+				is("text/plain; CharSet=MS932; format=flowed"));
+		assertThat(getContentType("text/plain; format=flowed"),
+				is("text/plain; format=flowed"));
+		// the aliases in longer names are not rewritten
+		assertThat(getContentType("text/plain; charset=x-sjis-foo"),
+				is("text/plain; charset=x-sjis-foo"));
+		assertThat(getContentType("text/plain; charset=iso-2022-jp-2"),
+				is("text/plain; charset=iso-2022-jp-2"));
+	}
+
 	private String getText(Multipart mp) throws MessagingException, IOException {
 		Part childPart = mp.getBodyPart(0);
 		if (childPart.getContentType().startsWith("text/plain")) {
@@ -106,7 +142,18 @@ public class MessageWrapperContentTest {
 		}
 	}
 
-	private static Message createMessage(String resourceName)
+	/**
+	 * return the Content-Type which JavaMail cleans with CharsetMap.
+	 */
+	private static String getContentType(String contentType)
+			throws MessagingException, IOException {
+		byte[] source = ("Content-Type: " + contentType + "\r\n\r\nbody\r\n")
+				.getBytes("US-ASCII");
+		return new MessageWrapper(null, new ByteArrayInputStream(source))
+				.getContentType();
+	}
+
+	private static MessageWrapper createMessage(String resourceName)
 			throws MessagingException {
 		InputStream is = MessageWrapperContentTest.class.getClassLoader()
 				.getResourceAsStream(resourceName);
@@ -0,0 +1,216 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import com.google.common.primitives.Bytes;
+
+@RunWith(Parameterized.class)
+public class MessageWrapperLazyTest {
+
+	private static final byte[] BLANK_LINE = { '\r', '\n', '\r', '\n' };
+
+	private static final byte[] LF_BLANK_LINE = { '\n', '\n' };
+
+	private final String resourceName;
+
+	public MessageWrapperLazyTest(String resourceName) {
+		this.resourceName = resourceName;
+	}
+
+	@Parameters
+	public static Collection<Object[]> data() {
+		Object[][] data = new Object[][] {
+				// Charset is not specified
+				{ "subject/subject_002.txt" },
+				// charset is not specified (actually ISO-2022-JP)
+				{ "content/content_001.txt" },
+				// the specified charset is GB2312 but in fact it is GB18030
+				{ "content/content_005.txt" },
+				// uses wrong Content-Transfer-Encoding ISO-8859-1
+				{ "content/content_011.txt" },
+				// base64; iso-2022-jp, URLEncode;
+				{ "filename/filename_002.txt" } };
+		return Arrays.asList(data);
+	}
+
+	@Test
+	public void testEnvelopeWithoutBody() throws MessagingException,
+			IOException {
+		byte[] source = load(resourceName);
+		int headerEnd = getHeaderEnd(source);
+		InputStream headerOnly = new SequenceInputStream(
+				new ByteArrayInputStream(source, 0, headerEnd),
+				new BrokenInputStream());
+
+		MessageWrapper expected = new MessageWrapper(null,
+				new ByteArrayInputStream(source));
+		MessageWrapper lazy = new MessageWrapper(null, headerOnly, true);
+		MessageEnvelope envelope = lazy.getEnvelope();
+
+		assertThat(envelope.getSubject(), is(expected.getSubject()));
+		assertThat(envelope.getFrom(), is(expected.getFrom()));
+		assertThat(envelope.getTo(), is(expected.getRecipients(RecipientType.TO)));
+		assertThat(envelope.getCc(), is(expected.getRecipients(RecipientType.CC)));
+		assertThat(envelope.getReplyTo(), is(expected.getReplyTo()));
+		assertThat(envelope.getSentDate(), is(expected.getSentDate()));
+		assertThat(envelope.getContentType(), is(expected.getContentType()));
+	}
+
+	@Test
+	public void testContent() throws MessagingException, IOException {
+		byte[] source = load(resourceName);
+		MessageWrapper expected = new MessageWrapper(null,
+				new ByteArrayInputStream(source));
+		MessageWrapper lazy = new MessageWrapper(null,
+				new ByteArrayInputStream(source), true);
+
+		assertThat(lazy.getSize(), is(-1));
+		assertThat(toString(lazy.getContent()),
+				is(toString(expected.getContent())));
+		assertThat(lazy.getSize(), is(expected.getSize()));
+	}
+
+	@Test
+	public void testHeadersWithBodySupplier() throws MessagingException,
+			IOException {
+		byte[] source = load(resourceName);
+		MessageWrapper expected = new MessageWrapper(null,
+				new ByteArrayInputStream(source));
+		CountingSupplier body = new CountingSupplier(source);
+		MessageWrapper partial = new MessageWrapper(null,
+				new ByteArrayInputStream(source, 0, body.headerEnd), body);
+
+		assertThat(partial.getSubject(), is(expected.getSubject()));
+		assertThat(partial.getFrom(), is(expected.getFrom()));
+		assertThat(partial.getRecipients(RecipientType.TO),
+				is(expected.getRecipients(RecipientType.TO)));
+		assertThat(partial.getReplyTo(), is(expected.getReplyTo()));
+		if (!partial.isMimeType("multipart/*")) {
+			assertThat(partial.getFileName(), is(expected.getFileName()));
+		}
+		assertThat(body.calls, is(0));
+
+		assertThat(toString(partial.getContent()),
+				is(toString(expected.getContent())));
+		assertThat(toString(partial.getContent()),
+				is(toString(expected.getContent())));
+		assertThat(body.calls, is(1));
+	}
+
+	@Test
+	public void testBodySupplierByStreams() throws MessagingException,
+			IOException {
+		byte[] source = load(resourceName);
+		MessageWrapper expected = new MessageWrapper(null,
+				new ByteArrayInputStream(source));
+
+		CountingSupplier body = new CountingSupplier(source);
+		MessageWrapper partial = new MessageWrapper(null,
+				new ByteArrayInputStream(source, 0, body.headerEnd), body);
+		assertThat(readInputStream(partial),
+				is(readInputStream(expected)));
+		assertThat(body.calls, is(1));
+
+		body = new CountingSupplier(source);
+		partial = new MessageWrapper(null, new ByteArrayInputStream(source, 0,
+				body.headerEnd), body);
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		partial.writeTo(written);
+		ByteArrayOutputStream expectedWritten = new ByteArrayOutputStream();
+		expected.writeTo(expectedWritten);
+		assertThat(written.toByteArray(), is(expectedWritten.toByteArray()));
+		assertThat(body.calls, is(1));
+	}
+
+	/**
+	 * return the decoded content, or the message of the exception for the
+	 * broken Content-Transfer-Encoding.
+	 */
+	private static Object readInputStream(MessageWrapper message)
+			throws MessagingException {
+		try {
+			return ByteStreams.toByteArray(message.getInputStream());
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+	}
+
+	private String toString(Object content) throws MessagingException {
+		if (content instanceof Multipart) {
+			return String.valueOf(((Multipart) content).getCount());
+		}
+		return String.valueOf(content);
+	}
+
+	private static int getHeaderEnd(byte[] source) {
+		int crlf = Bytes.indexOf(source, BLANK_LINE);
+		if (crlf >= 0) {
+			return crlf + BLANK_LINE.length;
+		}
+		return Bytes.indexOf(source, LF_BLANK_LINE) + LF_BLANK_LINE.length;
+	}
+
+	private static byte[] load(String resourceName) throws IOException {
+		InputStream is = MessageWrapperLazyTest.class.getClassLoader()
+				.getResourceAsStream(resourceName);
+		try {
+			return ByteStreams.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static class CountingSupplier implements
+			InputSupplier<InputStream> {
+		private final byte[] source;
+		private final int headerEnd;
+		private int calls = 0;
+
+		CountingSupplier(byte[] source) {
+			this.source = source;
+			this.headerEnd = getHeaderEnd(source);
+		}
+
+		public InputStream getInput() {
+			calls++;
+			return new ByteArrayInputStream(source, headerEnd, source.length
+					- headerEnd);
+		}
+	}
+
+	private static class BrokenInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			throw new IOException("the body must not be read");
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+
+@RunWith(Parameterized.class)
+public class MessageWrapperMappedFileTest {
+
+	private final String resourceName;
+
+	public MessageWrapperMappedFileTest(String resourceName) {
+		this.resourceName = resourceName;
+	}
+
+	@Parameters
+	public static Collection<Object[]> data() {
+		Object[][] data = new Object[][] {
+				// charset is not specified (actually ISO-2022-JP)
+				{ "content/content_001.txt" },
+				// the specified charset is GB2312 but in fact it is GB18030
+				{ "content/content_005.txt" },
+				// the specified charset is Shift_JIS but in fact it is MS932
+				{ "content/content_009.txt" },
+				// uses wrong Content-Transfer-Encoding ISO-8859-1
+				{ "content/content_011.txt" },
+				// base64; iso-2022-jp, URLEncode;
+				{ "filename/filename_003.txt" } };
+		return Arrays.asList(data);
+	}
+
+	@Test
+	public void testFile() throws MessagingException, IOException,
+			URISyntaxException {
+		Message expected = createMessage(resourceName);
+		Message mapped = new MessageWrapper(null, getFile(resourceName));
+		assertSameMessage(mapped, expected);
+	}
+
+	@Test
+	public void testFileChannel() throws MessagingException, IOException,
+			URISyntaxException {
+		Message expected = createMessage(resourceName);
+		FileInputStream fis = new FileInputStream(getFile(resourceName));
+		Message mapped;
+		try {
+			FileChannel channel = fis.getChannel();
+			mapped = new MessageWrapper(null, channel);
+		} finally {
+			fis.close();
+		}
+		assertSameMessage(mapped, expected);
+	}
+
+	private void assertSameMessage(Message mapped, Message expected)
+			throws MessagingException, IOException {
+		assertThat(mapped.getSubject(), is(expected.getSubject()));
+		assertThat(mapped.getFrom(), is(expected.getFrom()));
+		assertThat(getText(mapped), is(getText(expected)));
+	}
+
+	private String getText(Part part) throws MessagingException, IOException {
+		Object content = part.getContent();
+		if (content instanceof InputStream) {
+			return Arrays.toString(ByteStreams.toByteArray((InputStream) content));
+		}
+		if (!(content instanceof Multipart)) {
+			return String.valueOf(content);
+		}
+		Multipart mp = (Multipart) content;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < mp.getCount(); i++) {
+			Part child = mp.getBodyPart(i);
+			sb.append(child.getFileName()).append(":");
+			sb.append(getText(child));
+		}
+		return sb.toString();
+	}
+
+	private static File getFile(String resourceName) throws URISyntaxException {
+		return new File(Resources.getResource(resourceName).toURI());
+	}
+
+	private static Message createMessage(String resourceName)
+			throws MessagingException {
+		InputStream is = MessageWrapperMappedFileTest.class.getClassLoader()
+				.getResourceAsStream(resourceName);
+		return new MessageWrapper(null, is);
+	}
+}
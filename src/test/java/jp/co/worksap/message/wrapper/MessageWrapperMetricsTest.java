@@ -0,0 +1,164 @@
+/* 
+ * Copyright (C) 2012 Works Applications Co., Ltd. 
+ *            http://www.worksap.co.jp/
+ * 
+ * Licensed under the MIT License:
+ *      http://www.opensource.org/licenses/mit-license.php
+ * 
+ */
+
+package jp.co.worksap.message.wrapper;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import javax.mail.MessagingException;
+
+import jp.co.worksap.message.metrics.CountingDecodeMetricsListener;
+import jp.co.worksap.message.metrics.DecodeMetrics;
+import jp.co.worksap.message.metrics.DecodeMetricsListener;
+import jp.co.worksap.message.metrics.DecodeStage;
+
+import org.junit.Test;
+
+public class MessageWrapperMetricsTest {
+
+	@Test
+	public void testNoopByDefault() throws MessagingException {
+		MessageWrapper message = createMessage("subject/subject_001.txt");
+		assertThat(message.getMetricsListener(), is(DecodeMetricsListener.NOOP));
+	}
+
+	@Test
+	public void testSubjectIsReportedOnce() throws MessagingException {
+		MessageWrapper message = createMessage("subject/subject_001.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+		message.setUID("uid");
+
+		message.getSubject();
+		// decoded subject is cached
+		message.getSubject();
+		assertThat(listener.getCount(DecodeStage.SUBJECT_DECODE), is(1L));
+		assertThat(listener.getBytes(DecodeStage.SUBJECT_DECODE),
+				is(greaterThan(0L)));
+		assertThat(listener.getCount(DecodeStage.CONTENT_DECODE), is(0L));
+	}
+
+	@Test
+	public void testAddress() throws MessagingException {
+		MessageWrapper message = createMessage("address/address_001.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+
+		message.getFrom();
+		message.getReplyTo();
+		assertThat(listener.getCount(DecodeStage.ADDRESS_DECODE), is(2L));
+	}
+
+	@Test
+	public void testReplyToFallbackIsReportedOnce() throws MessagingException {
+		// no Reply-To field, so it falls back on From
+		MessageWrapper message = createMessage("address/address_001.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+
+		message.getReplyTo();
+		assertThat(listener.getCount(DecodeStage.ADDRESS_DECODE), is(1L));
+	}
+
+	@Test
+	public void testCharsetGuess() throws MessagingException, IOException {
+		// charset is not specified (actually ISO-2022-JP)
+		MessageWrapper message = createMessage("content/content_001.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+
+		message.getContent();
+		assertThat(listener.getCount(DecodeStage.CONTENT_DECODE), is(1L));
+		assertThat(listener.getCount(DecodeStage.CHARSET_GUESS), is(1L));
+		assertThat(listener.getBytes(DecodeStage.CHARSET_GUESS),
+				is(greaterThan(0L)));
+		assertThat(listener.getCharsetCounts(DecodeStage.CHARSET_GUESS)
+				.size(), is(1));
+	}
+
+	@Test
+	public void testIOExceptionRecovery() throws MessagingException,
+			IOException {
+		// uses wrong Content-Transfer-Encoding ISO-8859-1
+		MessageWrapper message = createMessage("content/content_011.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+
+		message.getContent();
+		assertThat(listener.getCount(DecodeStage.CONTENT_IO_RECOVERY), is(1L));
+		assertThat(listener.getCount(DecodeStage.CONTENT_DECODE), is(1L));
+		// the Java charset instead of "UTF-8" in quotes
+		assertThat(listener.getCharsetCounts(DecodeStage.CONTENT_IO_RECOVERY)
+				.keySet(), is(Collections.singleton("UTF-8")));
+	}
+
+	@Test
+	public void testFileNameRepair() throws MessagingException, IOException {
+		// the file name is ISO-2022-JP without encoded words
+		MessageWrapper message = createMessage("filename/filename_004.txt");
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		message.setMetricsListener(listener);
+
+		message.getContent();
+		assertThat(listener.getCount(DecodeStage.FILE_NAME_FIX), is(1L));
+		assertThat(listener.getCount(DecodeStage.CHARSET_GUESS),
+				is(greaterThan(0L)));
+	}
+
+	@Test
+	public void testGlobalListener() throws MessagingException {
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		DecodeMetrics.setListener(listener);
+		try {
+			MessageWrapper message = createMessage("subject/subject_001.txt");
+			message.getSubject();
+			assertThat(listener.getCount(DecodeStage.SUBJECT_DECODE), is(1L));
+
+			// the listener of the wrapper is used instead
+			MessageWrapper other = createMessage("subject/subject_001.txt");
+			other.setMetricsListener(DecodeMetricsListener.NOOP);
+			other.getSubject();
+			assertThat(listener.getCount(DecodeStage.SUBJECT_DECODE), is(1L));
+		} finally {
+			DecodeMetrics.setListener(DecodeMetricsListener.NOOP);
+		}
+	}
+
+	@Test
+	public void testHistogram() {
+		CountingDecodeMetricsListener listener = new CountingDecodeMetricsListener();
+		listener.stageCompleted(DecodeStage.CONTENT_DECODE, null, -1, 500,
+				-1, null);
+		listener.stageCompleted(DecodeStage.CONTENT_DECODE, null, -1, 1500,
+				-1, null);
+		listener.stageCompleted(DecodeStage.CONTENT_DECODE, null, -1,
+				Long.MAX_VALUE / 2, -1, null);
+
+		long[] histogram = listener.getHistogram(DecodeStage.CONTENT_DECODE);
+		assertThat(histogram[0], is(1L));
+		assertThat(histogram[1], is(1L));
+		assertThat(histogram[CountingDecodeMetricsListener.BUCKETS - 1],
+				is(1L));
+		assertThat(listener.getMaxNanos(DecodeStage.CONTENT_DECODE),
+				is(Long.MAX_VALUE / 2));
+		assertThat(listener.getBytes(DecodeStage.CONTENT_DECODE), is(0L));
+	}
+
+	private static MessageWrapper createMessage(String resourceName) {
+		InputStream is = MessageWrapperMetricsTest.class.getClassLoader()
+				.getResourceAsStream(resourceName);
+		return new MessageWrapper(null, is);
+	}
+}
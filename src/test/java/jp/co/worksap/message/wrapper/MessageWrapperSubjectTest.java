@@ -53,7 +53,13 @@ public class MessageWrapperSubjectTest {
 				//Subject is partly encoded and some sections start with not-encoded character.
 				{ "テストテスト(テスト2/9(テスト)テスト18:00テスト", "005"},
 				//Contains special character "髙"
-				{ "Test special character 髙", "006"}	
+				{ "Test special character 髙", "006"},
+				//A character is split into adjacent encoded words.
+				{ "Test split character テスト", "007"},
+				//Bytes of a character are split into adjacent Base64 words.
+				{ "Test split bytes テスト", "008"},
+				//Contains Korean and Chinese charsets which need the mapping.
+				{ "Test Asian charsets テスト한국어中文", "009"}
 		};
 		return Arrays.asList(data);
 	}
@@ -69,4 +75,13 @@ public class MessageWrapperSubjectTest {
 		Message message = createMessage(String.format(filePath, fileName));
 		assertThat(message.getSubject(), is(expectedSubject));
 	}
+
+	@Test
+	public void testChangedSubject() throws MessagingException {
+		Message message = createMessage(String.format(filePath, fileName));
+		// decoded subject is cached
+		message.getSubject();
+		message.setSubject("changed");
+		assertThat(message.getSubject(), is("changed"));
+	}
 }